@@ -3,21 +3,34 @@ package ru.deewend.classycord;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.*;
-
+import java.nio.charset.StandardCharsets;
+
+/*
+ * In client mode each write() is expected to be a single packet, as split by
+ * the Client's PacketFramer, so the stream looks only at Message and ExtEntry
+ * packets and skips everything else in O(1). No allocations are made for
+ * Messages unless a gotoCommandStart message has actually been found.
+ *
+ * In server mode the stream remembers the last Disconnect packet, or the last
+ * 1KiB of the data if the Server's PacketFramer has lost packet boundaries.
+ */
 public class AnalyzingStream extends OutputStream {
     public static final String EXPECTED_MESSAGE_START =
             ClassyCord.getInstance().getGotoCommandStart();
+    private static final byte[] EXPECTED_MESSAGE_START_BYTES =
+            EXPECTED_MESSAGE_START.getBytes(StandardCharsets.ISO_8859_1);
 
     private final SocketHolder holder;
-    private long currentPos = Long.MIN_VALUE;
-    private final Map<Long, byte[]> map = new HashMap<>();
-    private final List<Long> keysToRemove = new ArrayList<>();
+    private final byte[] singleByte = new byte[1];
     private ByteArrayOutputStream recordedBytes;
     private boolean suppressingBytes;
     private boolean serverMode;
+    private final byte[] lastDisconnectReason = new byte[Utils.PROTOCOL_STRING_LENGTH];
+    private boolean receivedDisconnect;
+    // a circular buffer, last1KiBFromServerIdx points to the oldest byte once it's full
     private final byte[] last1KiBFromServer = new byte[1024];
     private int last1KiBFromServerIdx;
+    private boolean last1KiBFromServerFull;
 
     public AnalyzingStream(SocketHolder holder) {
         this.holder = holder;
@@ -25,42 +38,78 @@ public class AnalyzingStream extends OutputStream {
 
     @Override
     public void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
         if (serverMode) {
-            if (last1KiBFromServerIdx != last1KiBFromServer.length) {
-                last1KiBFromServer[last1KiBFromServerIdx++] = (byte) b;
+            PacketFramer serverFramer = holder.getServerFramer();
+            if (serverFramer != null && serverFramer.isSynced()) {
+                rememberServerPacket(b, off, len);
             } else {
-                for (int i = 1; i < last1KiBFromServer.length; i++) {
-                    last1KiBFromServer[i - 1] = last1KiBFromServer[i];
-                }
-                last1KiBFromServer[last1KiBFromServer.length - 1] = (byte) b;
+                rememberServerData(b, off, len);
             }
 
             return;
         }
         if (isRecording()) {
-            recordedBytes.write(b);
+            recordedBytes.write(b, off, len);
         }
-        if (b == Utils.MESSAGE_PACKET) {
-            map.put(currentPos, new byte[Utils.PROTOCOL_STRING_LENGTH]);
+        if (holder.getClientFramer().isSynced()) analyzePacket(b, off, len);
+    }
+
+    private void rememberServerPacket(byte[] b, int off, int len) {
+        if (b[off] != Utils.DISCONNECT_PACKET || len != 1 + lastDisconnectReason.length) {
+            return;
         }
-        for (Map.Entry<Long, byte[]> entry : map.entrySet()) {
-            long pos = entry.getKey();
-            byte[] buffer = entry.getValue();
-            int bufferIdx = (int) (currentPos - pos - 1L - /* skipping playerId */ 1L);
-            if (bufferIdx < 0) continue;
-            buffer[bufferIdx] = (byte) b;
-            if (bufferIdx == Utils.PROTOCOL_STRING_LENGTH - 1) {
-                handleMessage(Utils.readMCString(buffer));
-                keysToRemove.add(pos);
+        System.arraycopy(b, off + 1, lastDisconnectReason, 0, lastDisconnectReason.length);
+        receivedDisconnect = true;
+    }
+
+    private void rememberServerData(byte[] b, int off, int len) {
+        int capacity = last1KiBFromServer.length;
+        if (len >= capacity) {
+            // only the tail is going to survive anyway
+            System.arraycopy(b, off + len - capacity, last1KiBFromServer, 0, capacity);
+            last1KiBFromServerIdx = 0;
+            last1KiBFromServerFull = true;
+
+            return;
+        }
+        int firstPart = Math.min(len, capacity - last1KiBFromServerIdx);
+        System.arraycopy(b, off, last1KiBFromServer, last1KiBFromServerIdx, firstPart);
+        System.arraycopy(b, off + firstPart, last1KiBFromServer, 0, len - firstPart);
+        int newIdx = last1KiBFromServerIdx + len;
+        if (newIdx >= capacity) {
+            newIdx -= capacity;
+            last1KiBFromServerFull = true;
+        }
+        last1KiBFromServerIdx = newIdx;
+    }
+
+    private void analyzePacket(byte[] b, int off, int len) {
+        int packetId = (b[off] & 0xFF);
+        if (packetId == Utils.MESSAGE_PACKET) {
+            int messageStart = off + /* skipping packetId and playerId */ 2;
+            if (startsWithExpectedMessage(b, messageStart)) {
+                handleMessage(Utils.readMCString(b, messageStart));
             }
         }
-        Utils.removeKeys(keysToRemove, map);
+    }
+
+    private static boolean startsWithExpectedMessage(byte[] b, int off) {
+        byte[] expected = EXPECTED_MESSAGE_START_BYTES;
+        if (expected.length > Utils.PROTOCOL_STRING_LENGTH) return false;
 
-        if (currentPos == Long.MAX_VALUE) {
-            // good job, let's offer the client to reconnect
-            throw new IOException("currentPos reached its max value");
+        for (int i = 0; i < expected.length; i++) {
+            int c = b[off + i];
+            if (c >= 'A' && c <= 'Z') c += ('a' - 'A');
+            if (c != expected[i]) return false;
         }
-        currentPos++;
+
+        return true;
     }
 
     public void setServerMode(boolean serverMode) {
@@ -95,11 +144,23 @@ public class AnalyzingStream extends OutputStream {
     }
 
     public String findDisconnectMessage() {
-        for (int i = last1KiBFromServer.length - 1; i >= 0; i--) {
-            if (last1KiBFromServer[i] == Utils.DISCONNECT_PACKET) {
-                byte[] reasonBytes = new byte[64];
+        if (receivedDisconnect) return Utils.readMCString(lastDisconnectReason);
+
+        int capacity = last1KiBFromServer.length;
+        int count = (last1KiBFromServerFull ? capacity : last1KiBFromServerIdx);
+        int oldestIdx = (last1KiBFromServerFull ? last1KiBFromServerIdx : 0);
+        int reasonLength = Utils.PROTOCOL_STRING_LENGTH;
+        // the reason has to be fully received, so skipping the last 64 bytes
+        for (int i = count - reasonLength - 1; i >= 0; i--) {
+            int idx = (oldestIdx + i) % capacity;
+            if (last1KiBFromServer[idx] == Utils.DISCONNECT_PACKET) {
+                byte[] reasonBytes = new byte[reasonLength];
+                int reasonIdx = (idx + 1) % capacity;
+                int firstPart = Math.min(reasonLength, capacity - reasonIdx);
+                System.arraycopy(last1KiBFromServer,
+                        reasonIdx, reasonBytes, 0, firstPart);
                 System.arraycopy(last1KiBFromServer,
-                        i, reasonBytes, 0, reasonBytes.length);
+                        0, reasonBytes, firstPart, reasonLength - firstPart);
 
                 return Utils.readMCString(reasonBytes);
             }
@@ -0,0 +1,92 @@
+package ru.deewend.classycord;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Delivers non-cancellable events to the handlers registered as asynchronous
+ * (see EventManager#registerAsyncEventHandler()). Each worker thread has its
+ * own bounded queue and all events of a SocketHolder go to the same worker,
+ * so they are delivered in the order they were fired. If the queue is full,
+ * the event is dropped: HandlerThreads never wait for plugins.
+ */
+public class AsyncEventDispatcher {
+    private static class Delivery {
+        private final Event event;
+        private final EventHandler<?>[] eventHandlers;
+
+        private Delivery(Event event, EventHandler<?>[] eventHandlers) {
+            this.event = event;
+            this.eventHandlers = eventHandlers;
+        }
+    }
+
+    private final BlockingQueue<Delivery>[] queues;
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    public AsyncEventDispatcher(int threadCount, int queueCapacity) {
+        // generic arrays can't be created, every element is a BlockingQueue<Delivery> though
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        BlockingQueue<Delivery>[] queues = new BlockingQueue[threadCount];
+        this.queues = queues;
+        for (int i = 0; i < threadCount; i++) {
+            BlockingQueue<Delivery> queue = new ArrayBlockingQueue<>(queueCapacity);
+            queues[i] = queue;
+
+            Thread thread = new Thread(() -> work(queue), "async events (i=" + i + ")");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    void dispatch(Event event, EventHandler<?>[] eventHandlers) {
+        // events which are not bound to a connection are delivered by the first worker
+        SocketHolder holder = (event instanceof HandlerThread.HandlerThreadEvent ?
+                ((HandlerThread.HandlerThreadEvent) event).getHolder() : null);
+        int index = (holder == null ? 0 :
+                (System.identityHashCode(holder) & Integer.MAX_VALUE) % queues.length);
+        if (!queues[index].offer(new Delivery(event, eventHandlers))) {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    @SuppressWarnings("InfiniteLoopStatement")
+    private void work(BlockingQueue<Delivery> queue) {
+        while (true) {
+            Delivery delivery;
+            try {
+                delivery = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (EventHandler<?> eventHandler : delivery.eventHandlers) {
+                try {
+                    EventManager.handleEvent(eventHandler, delivery.event);
+                } catch (Throwable t) {
+                    Log.w("An asynchronous handler of " +
+                            delivery.event.getClass().getName() + " has failed", t);
+                }
+            }
+            deliveredCount.incrementAndGet();
+        }
+    }
+
+    // How many events are waiting to be delivered
+    public int getQueueDepth() {
+        int depth = 0;
+        for (BlockingQueue<Delivery> queue : queues) depth += queue.size();
+
+        return depth;
+    }
+
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    // Events which have been dropped because the queue of their worker was full
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+}
@@ -0,0 +1,54 @@
+package ru.deewend.classycord;
+
+/*
+ * Backpressure bookkeeping of one outbound queue of a SocketHolder. Once the
+ * queue gets longer than the high watermark, the proxy stops reading from the
+ * opposite side of the connection until the queue drops below the low
+ * watermark. If the queue stays above the hard cap for too long,
+ * the connection should be closed.
+ *
+ * Accessed only while holding the HandlerThread monitor.
+ */
+public class Backpressure {
+    public static final int HIGH_WATERMARK =
+            ClassyCord.getInstance().getOutboundHighWatermark();
+    public static final int LOW_WATERMARK =
+            ClassyCord.getInstance().getOutboundLowWatermark();
+    public static final int HARD_CAP =
+            ClassyCord.getInstance().getOutboundHardCap();
+    public static final long HARD_CAP_TIMEOUT =
+            ClassyCord.getInstance().getOutboundHardCapTimeoutMillis();
+
+    private boolean paused;
+    private long aboveHardCapSince;
+
+    // Returns true if reading from the opposite side has been paused or resumed
+    boolean update(int queuedBytes, long currentTimeMillis) {
+        if (queuedBytes > HARD_CAP) {
+            if (aboveHardCapSince == 0L) aboveHardCapSince = currentTimeMillis;
+        } else {
+            aboveHardCapSince = 0L;
+        }
+        if (!paused && queuedBytes > HIGH_WATERMARK) {
+            paused = true;
+
+            return true;
+        }
+        if (paused && queuedBytes < LOW_WATERMARK) {
+            paused = false;
+
+            return true;
+        }
+
+        return false;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public boolean hasStayedAboveHardCap(long currentTimeMillis) {
+        return aboveHardCapSince != 0L &&
+                currentTimeMillis - aboveHardCapSince >= HARD_CAP_TIMEOUT;
+    }
+}
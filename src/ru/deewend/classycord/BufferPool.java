@@ -0,0 +1,77 @@
+package ru.deewend.classycord;
+
+import java.util.ArrayDeque;
+
+/*
+ * Each HandlerThread has its own pool of PooledBuffers, so forwarding
+ * packets doesn't produce garbage. Buffers are grouped into power-of-two
+ * size classes from MIN_POOLED_SIZE to MAX_POOLED_SIZE, larger requests are
+ * served with buffers which are not recycled. Buffers may be released from
+ * any thread (e.g. by a plugin which has retained one).
+ */
+public class BufferPool {
+    public static final int MIN_POOLED_SIZE = 64;
+    public static final int MAX_POOLED_SIZE = 16384;
+    public static final int MAX_FREE_BUFFERS_PER_CLASS = 64;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_POOLED_SIZE);
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<PooledBuffer>[] freeBuffers = new ArrayDeque[
+            Integer.numberOfTrailingZeros(MAX_POOLED_SIZE) - MIN_SHIFT + 1];
+    private long acquiredCount;
+    private long allocatedCount;
+
+    public BufferPool() {
+        for (int i = 0; i < freeBuffers.length; i++) {
+            freeBuffers[i] = new ArrayDeque<>();
+        }
+    }
+
+    // The returned buffer has the given length and a single reference
+    public synchronized PooledBuffer acquire(int length) {
+        acquiredCount++;
+        PooledBuffer buffer;
+        if (length > MAX_POOLED_SIZE) {
+            allocatedCount++;
+            buffer = new PooledBuffer(null, new byte[length]);
+        } else {
+            int sizeClass = getSizeClass(length);
+            buffer = freeBuffers[sizeClass].poll();
+            if (buffer == null) {
+                allocatedCount++;
+                buffer = new PooledBuffer(this, new byte[MIN_POOLED_SIZE << sizeClass]);
+            }
+        }
+        buffer.reset(length);
+
+        return buffer;
+    }
+
+    synchronized void recycle(PooledBuffer buffer) {
+        ArrayDeque<PooledBuffer> free = freeBuffers[getSizeClass(buffer.array().length)];
+        if (free.size() < MAX_FREE_BUFFERS_PER_CLASS) free.offer(buffer);
+    }
+
+    private static int getSizeClass(int length) {
+        if (length <= MIN_POOLED_SIZE) return 0;
+
+        return (32 - Integer.numberOfLeadingZeros(length - 1)) - MIN_SHIFT;
+    }
+
+    public synchronized long getAcquiredCount() {
+        return acquiredCount;
+    }
+
+    // How many times acquire() had to allocate a new array
+    public synchronized long getAllocatedCount() {
+        return allocatedCount;
+    }
+
+    public synchronized int getFreeBufferCount() {
+        int count = 0;
+        for (ArrayDeque<PooledBuffer> free : freeBuffers) count += free.size();
+
+        return count;
+    }
+}
@@ -0,0 +1,98 @@
+package ru.deewend.classycord;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/*
+ * An InputStream over a non-blocking SocketChannel. The HandlerThread fills
+ * the internal buffer when the channel is readable,
+ * everything else (available(), read()) only touches the buffered bytes, so
+ * the existing tick logic can be reused without doing any syscalls.
+ */
+public class ChannelInputStream extends InputStream {
+    public static final int INITIAL_CAPACITY = 8192;
+    public static final int MAX_CAPACITY = 4 * 1024 * 1024;
+
+    private final SocketChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private boolean endOfStream;
+
+    public ChannelInputStream(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /*
+     * Reads up to maxCount bytes the channel currently has to offer. Returns
+     * the number of bytes read or -1 if the remote side has closed the connection.
+     */
+    public int fill(int maxCount) throws IOException {
+        int total = 0;
+        try {
+            while (total < maxCount) {
+                if (buffer.position() == buffer.capacity()) {
+                    if (buffer.capacity() >= MAX_CAPACITY) break;
+
+                    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+                buffer.limit(Math.min(buffer.capacity(), buffer.position() + (maxCount - total)));
+                int read = channel.read(buffer);
+                if (read == -1) {
+                    endOfStream = true;
+
+                    return (total == 0 ? -1 : total);
+                }
+                if (read == 0) break;
+
+                total += read;
+            }
+        } finally {
+            buffer.limit(buffer.capacity());
+        }
+
+        return total;
+    }
+
+    @Override
+    public int available() throws IOException {
+        int available = buffer.position();
+        if (available == 0 && endOfStream) {
+            throw new IOException("The remote side has closed the connection");
+        }
+
+        return available;
+    }
+
+    @Override
+    public int read() {
+        if (buffer.position() == 0) return -1;
+
+        buffer.flip();
+        int b = buffer.get() & 0xFF;
+        buffer.compact();
+
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        int available = buffer.position();
+        if (available == 0) return (endOfStream ? -1 : 0);
+
+        int count = Math.min(len, available);
+        buffer.flip();
+        buffer.get(b, off, count);
+        buffer.compact();
+
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,111 @@
+package ru.deewend.classycord;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/*
+ * An OutputStream over a non-blocking SocketChannel. Written bytes are queued
+ * and flush() pushes as much as the socket accepts right now. If something is
+ * left, the stream asks its Selector to report the channel as writable and
+ * the HandlerThread calls drain() later on. Can be used from any thread.
+ */
+public class ChannelOutputStream extends OutputStream {
+    public static final int INITIAL_CAPACITY = 8192;
+
+    private final SocketChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private SelectionKey key;
+
+    public ChannelOutputStream(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        ensureCapacity(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        buffer.put(b, off, len);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        drain();
+    }
+
+    /*
+     * Writes the queued bytes without blocking. Returns true if
+     * nothing is left in the queue.
+     */
+    public synchronized boolean drain() throws IOException {
+        if (buffer.position() != 0) {
+            buffer.flip();
+            try {
+                channel.write(buffer);
+            } finally {
+                buffer.compact();
+            }
+        }
+        boolean drained = (buffer.position() == 0);
+        updateInterest(drained);
+
+        return drained;
+    }
+
+    public synchronized int getQueuedByteCount() {
+        return buffer.position();
+    }
+
+    // The key is shared with the ChannelInputStream, it's used to pause reading
+    synchronized void setReadInterest(boolean interested) {
+        if (key == null || !key.isValid()) return;
+
+        int interestOps = key.interestOps();
+        key.interestOps(interested ?
+                (interestOps | SelectionKey.OP_READ) : (interestOps & ~SelectionKey.OP_READ));
+    }
+
+    synchronized void setSelectionKey(SelectionKey key) {
+        this.key = key;
+
+        updateInterest(buffer.position() == 0);
+    }
+
+    private void updateInterest(boolean drained) {
+        if (key == null || !key.isValid()) return;
+
+        int interestOps = key.interestOps();
+        if (drained) {
+            if ((interestOps & SelectionKey.OP_WRITE) != 0) {
+                key.interestOps(interestOps & ~SelectionKey.OP_WRITE);
+            }
+        } else if ((interestOps & SelectionKey.OP_WRITE) == 0) {
+            key.interestOps(interestOps | SelectionKey.OP_WRITE);
+            // the change has to be picked up by a select() which might be in progress
+            key.selector().wakeup();
+        }
+    }
+
+    private void ensureCapacity(int length) {
+        if (buffer.remaining() >= length) return;
+
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < length) capacity *= 2;
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
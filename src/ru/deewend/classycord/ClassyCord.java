@@ -1,11 +1,40 @@
 package ru.deewend.classycord;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ClassyCord {
+    public enum IOEngine {
+        // HandlerThreads poll non-blocking SocketChannels every tick
+        CLASSIC,
+        // HandlerThreads wait on a Selector and handle non-blocking SocketChannels
+        NIO,
+        /*
+         * Every connection gets two (virtual, if supported) threads blocking on
+         * reads. maxConnectionsCountPerHandlerThread applies as well: without
+         * virtual threads (e.g. on Java 8) each connection costs two platform
+         * threads with their own stacks.
+         */
+        RELAY
+    }
+
+    public enum LogOverflowPolicy {
+        // the thread logging something waits until the log writer catches up
+        BLOCK,
+        // the entry is dropped (unless it's SEVERE), the number of dropped entries is logged later
+        DROP
+    }
+
     public static final String VERSION = "0.9.6";
     public static final int VERSION_CODE = 6;
     public static final boolean DEBUG = Boolean
@@ -22,18 +51,40 @@ public class ClassyCord {
     private final String logFormat;
     private final boolean saveLogsOnDisk;
     private final String logFileNameFormat;
+    private final int logQueueCapacity;
+    private final LogOverflowPolicy logOverflowPolicy;
     private final HandlerThread[] handlerThreads;
     private final int maxConnectionsCountPerHandlerThread;
     private final int tickRateOfHandlerThread;
     private final long readTimeoutMillis;
+    private final long handshakeTimeoutMillis;
+    private final int serverConnectTimeoutMillis;
     private final long exceptionMapStorageTimeoutMillis;
+    private final int routeCacheMaxSize;
     private final int minTicksToWaitBeforeReconnecting;
+    private final int outboundHighWatermark;
+    private final int outboundLowWatermark;
+    private final int outboundHardCap;
+    private final long outboundHardCapTimeoutMillis;
+    private final int maxBytesPerConnectionPerTick;
+    private final int asyncEventThreadCount;
+    private final int asyncEventQueueCapacity;
+    private final int workerThreadCount;
+    private final int workerQueueCapacity;
     private final String gotoCommandStart;
     private final boolean fireTickEvent;
+    private final IOEngine ioEngine;
     private final GameServer firstServer;
     private final int maxPlayerCount;
     private final Map<String, GameServer> gameServerMap = new HashMap<>();
+    private final ExecutorService connectExecutor;
+    // Blocking plugin work, see PluginExecutor
+    private final ExecutorService workerExecutor;
+    private final AsyncEventDispatcher asyncEventDispatcher;
+    private final RouteCache routeCache;
+    private final Scheduler scheduler = new Scheduler();
     private Socket beingRegistered;
+    private long acceptedConnectionCount;
 
     public ClassyCord(
             String name,
@@ -45,19 +96,35 @@ public class ClassyCord {
             String logFormat,
             boolean saveLogsOnDisk,
             String logFileNameFormat,
+            int logQueueCapacity,
+            LogOverflowPolicy logOverflowPolicy,
             int maxHandlerThreadCount,
             int maxConnectionsCountPerHandlerThread,
             int tickRateOfHandlerThread,
             long readTimeoutMillis,
+            long handshakeTimeoutMillis,
+            int serverConnectTimeoutMillis,
             long exceptionMapStorageTimeoutMillis,
+            int routeCacheMaxSize,
             int minTicksToWaitBeforeReconnecting,
+            int outboundHighWatermark,
+            int outboundLowWatermark,
+            int outboundHardCap,
+            long outboundHardCapTimeoutMillis,
+            int maxBytesPerConnectionPerTick,
+            int asyncEventThreadCount,
+            int asyncEventQueueCapacity,
+            int workerThreadCount,
+            int workerQueueCapacity,
             String gotoCommandStart,
             boolean fireTickEvent,
+            IOEngine ioEngine,
             GameServer firstServer,
             GameServer... gameServers
     ) {
         Objects.requireNonNull(name);
         Objects.requireNonNull(salt);
+        Objects.requireNonNull(ioEngine);
         Objects.requireNonNull(firstServer);
         Objects.requireNonNull(gameServers);
 
@@ -84,14 +151,29 @@ public class ClassyCord {
         this.logFormat = logFormat;
         this.saveLogsOnDisk = saveLogsOnDisk;
         this.logFileNameFormat = logFileNameFormat;
+        this.logQueueCapacity = logQueueCapacity;
+        this.logOverflowPolicy = logOverflowPolicy;
         this.handlerThreads = new HandlerThread[maxHandlerThreadCount];
         this.maxConnectionsCountPerHandlerThread = maxConnectionsCountPerHandlerThread;
         this.tickRateOfHandlerThread = tickRateOfHandlerThread;
         this.readTimeoutMillis = readTimeoutMillis;
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+        this.serverConnectTimeoutMillis = serverConnectTimeoutMillis;
         this.exceptionMapStorageTimeoutMillis = exceptionMapStorageTimeoutMillis;
+        this.routeCacheMaxSize = routeCacheMaxSize;
         this.minTicksToWaitBeforeReconnecting = minTicksToWaitBeforeReconnecting;
+        this.outboundHighWatermark = outboundHighWatermark;
+        this.outboundLowWatermark = outboundLowWatermark;
+        this.outboundHardCap = outboundHardCap;
+        this.outboundHardCapTimeoutMillis = outboundHardCapTimeoutMillis;
+        this.maxBytesPerConnectionPerTick = maxBytesPerConnectionPerTick;
+        this.asyncEventThreadCount = asyncEventThreadCount;
+        this.asyncEventQueueCapacity = asyncEventQueueCapacity;
+        this.workerThreadCount = workerThreadCount;
+        this.workerQueueCapacity = workerQueueCapacity;
         this.gotoCommandStart = gotoCommandStart;
         this.fireTickEvent = fireTickEvent;
+        this.ioEngine = ioEngine;
 
         this.firstServer = firstServer;
         this.maxPlayerCount = maxHandlerThreadCount * maxConnectionsCountPerHandlerThread;
@@ -110,6 +192,24 @@ public class ClassyCord {
             Log.w("Could not find the first server in the list of all nodes");
         }
 
+        this.connectExecutor = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "connector");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+        AtomicInteger workerIndex = new AtomicInteger();
+        this.workerExecutor = new ThreadPoolExecutor(workerThreadCount, workerThreadCount,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(workerQueueCapacity), task -> {
+            Thread thread = new Thread(task, "worker (i=" + workerIndex.getAndIncrement() + ")");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+        this.asyncEventDispatcher =
+                new AsyncEventDispatcher(asyncEventThreadCount, asyncEventQueueCapacity);
+        this.routeCache = new RouteCache(exceptionMapStorageTimeoutMillis, routeCacheMaxSize);
+
         Runtime.getRuntime().addShutdownHook(new Thread(() -> Log.i("Goodbye!")));
     }
 
@@ -130,14 +230,29 @@ public class ClassyCord {
         props.setProperty("logFormat", "[HH:mm:ss dd.MM.yyyy] ");
         props.setProperty("saveLogsOnDisk", "true");
         props.setProperty("logFileNameFormat", "dd-MM-yyyy-logs.txt");
+        props.setProperty("logQueueCapacity", "8192");
+        props.setProperty("logOverflowPolicy", "drop");
         props.setProperty("maxHandlerThreadCount", "2");
         props.setProperty("maxConnectionsCountPerHandlerThread", "100");
         props.setProperty("tickRateOfHandlerThread", "25");
         props.setProperty("readTimeoutMillis", "420000");
+        props.setProperty("handshakeTimeoutMillis", "30000");
+        props.setProperty("serverConnectTimeoutMillis", "5000");
         props.setProperty("exceptionMapStorageTimeoutMillis", "900000");
+        props.setProperty("routeCacheMaxSize", "10000");
         props.setProperty("minTicksToWaitBeforeReconnecting", "2");
+        props.setProperty("outboundHighWatermark", "262144");
+        props.setProperty("outboundLowWatermark", "65536");
+        props.setProperty("outboundHardCap", "4194304");
+        props.setProperty("outboundHardCapTimeoutMillis", "15000");
+        props.setProperty("maxBytesPerConnectionPerTick", "65536");
+        props.setProperty("asyncEventThreadCount", "2");
+        props.setProperty("asyncEventQueueCapacity", "1024");
+        props.setProperty("workerThreadCount", "4");
+        props.setProperty("workerQueueCapacity", "1024");
         props.setProperty("gotoCommandStart", "/ccgoto ");
         props.setProperty("fireTickEvent", "false");
+        props.setProperty("ioEngine", "classic");
         props.setProperty("serverCount", "1");
         props.setProperty("server1Name", "Freebuild");
         props.setProperty("server1Address", "127.0.0.1");
@@ -168,6 +283,24 @@ public class ClassyCord {
         String logFormat = props.getProperty("logFormat");
         boolean saveLogsOnDisk = Boolean.parseBoolean(props.getProperty("saveLogsOnDisk"));
         String logFileNameFormat = props.getProperty("logFileNameFormat");
+        int logQueueCapacity = Integer.parseInt(props.getProperty("logQueueCapacity"));
+        if (logQueueCapacity <= 0) {
+            System.err.println("logQueueCapacity should be positive");
+
+            System.exit(-1);
+        }
+        LogOverflowPolicy logOverflowPolicy;
+        try {
+            logOverflowPolicy = LogOverflowPolicy.valueOf(
+                    props.getProperty("logOverflowPolicy").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown logOverflowPolicy, " +
+                    "supported values are: " + Arrays.toString(LogOverflowPolicy.values()));
+
+            System.exit(-1);
+
+            return;
+        }
         int maxHandlerThreadCount = Integer.parseInt(
                 props.getProperty("maxHandlerThreadCount"));
         if (maxHandlerThreadCount < 1) {
@@ -190,13 +323,87 @@ public class ClassyCord {
         }
         long readTimeoutMillis = Long.parseLong(
                 props.getProperty("readTimeoutMillis"));
+        // the Client has to identify itself within this time
+        long handshakeTimeoutMillis = Long.parseLong(
+                props.getProperty("handshakeTimeoutMillis"));
+        if (handshakeTimeoutMillis < 1L) {
+            System.err.println("handshakeTimeoutMillis is too low");
+
+            System.exit(-1);
+        }
+        int serverConnectTimeoutMillis = Integer.parseInt(
+                props.getProperty("serverConnectTimeoutMillis"));
+        if (serverConnectTimeoutMillis < 1) {
+            System.err.println("serverConnectTimeoutMillis is too low");
+
+            System.exit(-1);
+        }
         long exceptionMapStorageTimeoutMillis = Long.parseLong(
                 props.getProperty("exceptionMapStorageTimeoutMillis"));
+        int routeCacheMaxSize = Integer.parseInt(props.getProperty("routeCacheMaxSize"));
+        if (routeCacheMaxSize <= 0) {
+            System.err.println("routeCacheMaxSize should be positive");
+
+            System.exit(-1);
+        }
         int minTicksToWaitBeforeReconnecting = Integer.parseInt(
                 props.getProperty("minTicksToWaitBeforeReconnecting"));
+        int outboundHighWatermark = Integer.parseInt(
+                props.getProperty("outboundHighWatermark"));
+        int outboundLowWatermark = Integer.parseInt(
+                props.getProperty("outboundLowWatermark"));
+        int outboundHardCap = Integer.parseInt(
+                props.getProperty("outboundHardCap"));
+        if (outboundLowWatermark < 0 ||
+                outboundLowWatermark > outboundHighWatermark ||
+                outboundHighWatermark > outboundHardCap
+        ) {
+            System.err.println("Outbound queue limits should satisfy " +
+                    "0 <= outboundLowWatermark <= outboundHighWatermark <= outboundHardCap");
+
+            System.exit(-1);
+        }
+        long outboundHardCapTimeoutMillis = Long.parseLong(
+                props.getProperty("outboundHardCapTimeoutMillis"));
+        int maxBytesPerConnectionPerTick = Integer.parseInt(
+                props.getProperty("maxBytesPerConnectionPerTick"));
+        if (maxBytesPerConnectionPerTick <= 0) {
+            System.err.println("maxBytesPerConnectionPerTick should be positive");
+
+            System.exit(-1);
+        }
+        int asyncEventThreadCount = Integer.parseInt(
+                props.getProperty("asyncEventThreadCount"));
+        int asyncEventQueueCapacity = Integer.parseInt(
+                props.getProperty("asyncEventQueueCapacity"));
+        if (asyncEventThreadCount <= 0 || asyncEventQueueCapacity <= 0) {
+            System.err.println("asyncEventThreadCount and " +
+                    "asyncEventQueueCapacity should be positive");
+
+            System.exit(-1);
+        }
+        int workerThreadCount = Integer.parseInt(props.getProperty("workerThreadCount"));
+        int workerQueueCapacity = Integer.parseInt(props.getProperty("workerQueueCapacity"));
+        if (workerThreadCount <= 0 || workerQueueCapacity <= 0) {
+            System.err.println("workerThreadCount and " +
+                    "workerQueueCapacity should be positive");
+
+            System.exit(-1);
+        }
         String gotoCommandStart = props.getProperty("gotoCommandStart");
         boolean fireTickEvent = Boolean.parseBoolean(
                 props.getProperty("fireTickEvent"));
+        IOEngine ioEngine;
+        try {
+            ioEngine = IOEngine.valueOf(props.getProperty("ioEngine").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown ioEngine, " +
+                    "supported values are: " + Arrays.toString(IOEngine.values()));
+
+            System.exit(-1);
+
+            return;
+        }
 
         int port = Integer.parseInt(props.getProperty("port"));
         String salt = props.getProperty("salt");
@@ -241,14 +448,29 @@ public class ClassyCord {
                 logFormat,
                 saveLogsOnDisk,
                 logFileNameFormat,
+                logQueueCapacity,
+                logOverflowPolicy,
                 maxHandlerThreadCount,
                 maxConnectionsCountPerHandlerThread,
                 tickRateOfHandlerThread,
                 readTimeoutMillis,
+                handshakeTimeoutMillis,
+                serverConnectTimeoutMillis,
                 exceptionMapStorageTimeoutMillis,
+                routeCacheMaxSize,
                 minTicksToWaitBeforeReconnecting,
+                outboundHighWatermark,
+                outboundLowWatermark,
+                outboundHardCap,
+                outboundHardCapTimeoutMillis,
+                maxBytesPerConnectionPerTick,
+                asyncEventThreadCount,
+                asyncEventQueueCapacity,
+                workerThreadCount,
+                workerQueueCapacity,
                 gotoCommandStart,
                 fireTickEvent,
+                ioEngine,
                 firstServer,
                 gameServers
         )).start();
@@ -273,27 +495,36 @@ public class ClassyCord {
         PluginManager.getInstance().loadPlugins();
         PluginManager.getInstance().enablePlugins();
 
-        try (ServerSocket listeningSocket = new ServerSocket(port)) {
+        try (ServerSocket listeningSocket = openListeningSocket()) {
             startHandlerThreadAt(0);
-            Log.i("Listening on port " + port + "...");
+            Log.i("Listening on port " + port + " (ioEngine=" + ioEngine + ")...");
+            if (ioEngine == IOEngine.RELAY && !Utils.VIRTUAL_THREADS_SUPPORTED) {
+                Log.w("Virtual threads are not supported by this Java " +
+                        "Virtual Machine, relaying will be done by platform threads " +
+                        "(two per connection, up to " + 2 * maxPlayerCount + " in total)");
+            }
 
             while (true) {
                 beingRegistered = listeningSocket.accept();
                 beingRegistered.setTcpNoDelay(true);
                 Log.i(Utils.getAddress(beingRegistered) + " connected");
 
-                int i = 0;
+                int first = 0;
+                if (ioEngine == IOEngine.RELAY) {
+                    // relay threads don't load HandlerThreads much, let's spread the connections evenly
+                    first = (int) (acceptedConnectionCount++ % handlerThreads.length);
+                }
                 boolean successfullyAdded = false;
-                while (!successfullyAdded) {
+                for (int j = 0; j < handlerThreads.length && !successfullyAdded; j++) {
+                    int i = (first + j) % handlerThreads.length;
+                    if (handlerThreads[i] == null) startHandlerThreadAt(i);
                     try {
-                        successfullyAdded = handlerThreads[i++].addClient(beingRegistered);
+                        successfullyAdded = handlerThreads[i].addClient(beingRegistered);
                     } catch (IOException e) {
                         reportErrorAndClose(true);
 
                         break;
                     }
-                    if (i >= handlerThreads.length) break;
-                    if (handlerThreads[i] == null) startHandlerThreadAt(i);
                 }
 
                 if (!successfullyAdded) {
@@ -303,9 +534,26 @@ public class ClassyCord {
         }
     }
 
+    private ServerSocket openListeningSocket() throws IOException {
+        if (ioEngine == IOEngine.RELAY) return new ServerSocket(port);
+
+        // accepted Sockets will be backed by SocketChannels we can use in non-blocking mode
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.socket().bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            Utils.close(channel);
+
+            throw e;
+        }
+
+        return channel.socket();
+    }
+
     private void startHandlerThreadAt(int i) {
         handlerThreads[i] = new HandlerThread(i);
         handlerThreads[i].start();
+        scheduler.addHandlerThread(handlerThreads[i]);
     }
 
     public GameServer getGameServer(String name) {
@@ -357,6 +605,14 @@ public class ClassyCord {
         return logFileNameFormat;
     }
 
+    public int getLogQueueCapacity() {
+        return logQueueCapacity;
+    }
+
+    public LogOverflowPolicy getLogOverflowPolicy() {
+        return logOverflowPolicy;
+    }
+
     public int getMaxHandlerThreadCount() {
         return handlerThreads.length;
     }
@@ -377,14 +633,93 @@ public class ClassyCord {
         return readTimeoutMillis;
     }
 
+    public long getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    public int getServerConnectTimeoutMillis() {
+        return serverConnectTimeoutMillis;
+    }
+
+    // Used to establish connections to GameServers without blocking HandlerThreads
+    public ExecutorService getConnectExecutor() {
+        return connectExecutor;
+    }
+
+    // Plugins should use PluginManager#getExecutor() instead
+    ExecutorService getWorkerExecutor() {
+        return workerExecutor;
+    }
+
+    public AsyncEventDispatcher getAsyncEventDispatcher() {
+        return asyncEventDispatcher;
+    }
+
+    public RouteCache getRouteCache() {
+        return routeCache;
+    }
+
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
     public long getExceptionMapStorageTimeoutMillis() {
         return exceptionMapStorageTimeoutMillis;
     }
 
+    public int getRouteCacheMaxSize() {
+        return routeCacheMaxSize;
+    }
+
     public int getMinTicksToWaitBeforeReconnecting() {
         return minTicksToWaitBeforeReconnecting;
     }
 
+    // Outbound queue length (in bytes) at which we stop reading from the opposite side
+    public int getOutboundHighWatermark() {
+        return outboundHighWatermark;
+    }
+
+    // Outbound queue length (in bytes) at which we resume reading from the opposite side
+    public int getOutboundLowWatermark() {
+        return outboundLowWatermark;
+    }
+
+    public int getOutboundHardCap() {
+        return outboundHardCap;
+    }
+
+    public long getOutboundHardCapTimeoutMillis() {
+        return outboundHardCapTimeoutMillis;
+    }
+
+    /*
+     * How many bytes a HandlerThread reads from each side of a connection
+     * during a tick (or a Selector round when using NIO). The rest is left
+     * in the socket until the next round, so a single connection can't
+     * make the others wait.
+     */
+    public int getMaxBytesPerConnectionPerTick() {
+        return maxBytesPerConnectionPerTick;
+    }
+
+    public int getWorkerThreadCount() {
+        return workerThreadCount;
+    }
+
+    public int getWorkerQueueCapacity() {
+        return workerQueueCapacity;
+    }
+
+    public int getAsyncEventThreadCount() {
+        return asyncEventThreadCount;
+    }
+
+    // Per worker thread
+    public int getAsyncEventQueueCapacity() {
+        return asyncEventQueueCapacity;
+    }
+
     public String getGotoCommandStart() {
         return gotoCommandStart;
     }
@@ -393,6 +728,10 @@ public class ClassyCord {
         return fireTickEvent;
     }
 
+    public IOEngine getIOEngine() {
+        return ioEngine;
+    }
+
     public GameServer getFirstServer() {
         return firstServer;
     }
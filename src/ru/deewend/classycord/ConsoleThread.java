@@ -58,7 +58,52 @@ public class ConsoleThread extends Thread {
                 if (connections == prevConnections) {
                     Log.i(" - No one is online");
                 }
+                long forwardedBytes;
+                long allocatedBytes;
+                long highWatermarkHitCount;
+                long hardCapDisconnectCount;
+                int pendingTimeoutCount;
+                synchronized (thread) {
+                    forwardedBytes = thread.getForwardedBytes();
+                    allocatedBytes = thread.getAllocatedBytes();
+                    highWatermarkHitCount = thread.getHighWatermarkHitCount();
+                    hardCapDisconnectCount = thread.getHardCapDisconnectCount();
+                    pendingTimeoutCount = thread.getTimerWheel().size();
+                }
+                BufferPool bufferPool = thread.getBufferPool();
+                Log.i(" * Forwarded " + forwardedBytes + " bytes, " + (allocatedBytes == -1L ?
+                        "allocations are not measured (see -D" +
+                        Utils.MEASURE_ALLOCATIONS_PROPERTY + ")" : String.format(
+                        "allocated %.3f bytes per forwarded byte", (forwardedBytes == 0L ?
+                        0.0D : (double) allocatedBytes / forwardedBytes))));
+                Log.i(" * Outbound queues: high watermark exceeded " + highWatermarkHitCount +
+                        " time(s), " + hardCapDisconnectCount + " disconnect(s) due to the hard cap");
+                Log.i(" * Buffer pool: " + bufferPool.getAllocatedCount() + " allocated, " +
+                        bufferPool.getAcquiredCount() + " acquired, " +
+                        bufferPool.getFreeBufferCount() + " free");
+                Log.i(" * Timer wheel: " + pendingTimeoutCount + " pending timeout(s), " +
+                        thread.getScheduledTaskCount() + " of them are scheduled tasks");
+            }
+            AsyncEventDispatcher asyncEventDispatcher =
+                    ClassyCord.getInstance().getAsyncEventDispatcher();
+            Log.i("Asynchronous events: " + asyncEventDispatcher.getQueueDepth() + " queued, " +
+                    asyncEventDispatcher.getDeliveredCount() + " delivered, " +
+                    asyncEventDispatcher.getDroppedCount() + " dropped");
+            for (PluginExecutor executor : PluginManager.getInstance().getExecutors()) {
+                Log.i("Workers of " + executor.getPluginName() + ": " +
+                        executor.getQueueDepth() + " queued, " +
+                        executor.getCompletedCount() + " completed (" +
+                        executor.getFailedCount() + " failed), " +
+                        executor.getRejectedCount() + " rejected, " + String.format(
+                        "%.3f ms waiting and %.3f ms running on average",
+                        executor.getAverageWaitMillis(), executor.getAverageRunMillis()));
             }
+            RouteCache routeCache = ClassyCord.getInstance().getRouteCache();
+            Log.i("Reconnect routes: " + routeCache.size() + " stored, " +
+                    routeCache.getHitCount() + " hit(s), " +
+                    routeCache.getMissCount() + " miss(es), " +
+                    routeCache.getExpiredCount() + " expired, " +
+                    routeCache.getEvictedCount() + " evicted");
             Log.i("");
             int maxPlayerCount = ClassyCord.getInstance().getMaxPlayerCount();
             Log.i("Total player count: " + players + "/" + maxPlayerCount);
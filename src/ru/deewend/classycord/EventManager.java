@@ -1,33 +1,333 @@
 package ru.deewend.classycord;
 
+import java.lang.invoke.*;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/*
+ * Events are fired by all HandlerThreads simultaneously, so fireEvent() doesn't
+ * take any locks. Registering a handler replaces the handler arrays instead of
+ * modifying them. Note that your handlers may be called by several threads at
+ * the same time.
+ *
+ * A handler registered for some event class receives the events of its
+ * subclasses as well (e.g. a HandlerThreadEvent handler receives every event
+ * fired by HandlerThreads). Handlers are called in the order of their
+ * priorities (lower values first). Handlers having equal priorities are
+ * called starting from the ones registered for more specific classes.
+ *
+ * Instead of subclassing EventHandler, you may annotate listener methods
+ * with @Subscribe and pass the listener to registerListener().
+ *
+ * Handlers doing something slow (e.g. writing to a database) should be
+ * registered as asynchronous, see registerAsyncEventHandler().
+ *
+ * Handlers interested in a few packet types only may be registered with
+ * a Direction and a list of packetIds, see the corresponding overload.
+ * They're called in the order of their priorities too, interleaved with the
+ * synchronous handlers registered for the event class (the latter go first
+ * when priorities are equal). Unlike those, they're skipped once the event
+ * has been cancelled, since the packet isn't going to be forwarded anyway.
+ */
 @SuppressWarnings("unused")
 public class EventManager {
+    public enum Direction {
+        // Client -> Proxy (ServerboundDataReceiveEvent)
+        SERVERBOUND,
+        // GameServer -> Proxy (ClientboundDataReceiveEvent)
+        CLIENTBOUND
+    }
+
+    /*
+     * @Subscribe methods are compiled into implementations of this interface
+     * (or invoked through a MethodHandle if that's not possible).
+     */
+    @FunctionalInterface
+    public interface SubscriberInvoker {
+        void invoke(Event event) throws Throwable;
+    }
+
+    private static class Registration {
+        private final EventHandler<?> eventHandler;
+        private final int priority;
+        private final boolean async;
+
+        private Registration(EventHandler<?> eventHandler, int priority, boolean async) {
+            this.eventHandler = eventHandler;
+            this.priority = priority;
+            this.async = async;
+        }
+    }
+
+    // Resolved handlers of an event class
+    private static class HandlerList {
+        private final EventHandler<?>[] eventHandlers;
+        // priorities[i] is the priority of eventHandlers[i]
+        private final int[] priorities;
+        private final EventHandler<?>[] asyncEventHandlers;
+
+        private HandlerList(
+                EventHandler<?>[] eventHandlers,
+                int[] priorities,
+                EventHandler<?>[] asyncEventHandlers
+        ) {
+            this.eventHandlers = eventHandlers;
+            this.priorities = priorities;
+            this.asyncEventHandlers = asyncEventHandlers;
+        }
+    }
+
+    private static class SubscribedHandler extends EventHandler<Event> {
+        private final SubscriberInvoker invoker;
+        private final boolean ignoreCancelled;
+
+        private SubscribedHandler(SubscriberInvoker invoker, boolean ignoreCancelled) {
+            this.invoker = invoker;
+            this.ignoreCancelled = ignoreCancelled;
+        }
+
+        @Override
+        public void handleEvent(Event event) {
+            if (ignoreCancelled && event.isCancelled()) return;
+
+            try {
+                invoker.invoke(event);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+    }
+
+    public static final int DEFAULT_PRIORITY = 0;
+
+    private static final EventHandler<?>[] NO_HANDLERS = new EventHandler<?>[0];
+    private static final Registration[] NO_REGISTRATIONS = new Registration[0];
+    private static final HandlerList EMPTY_HANDLER_LIST =
+            new HandlerList(NO_HANDLERS, new int[0], NO_HANDLERS);
+    private static final int PACKET_ID_COUNT = 256;
+    // has to be initialized after NO_HANDLERS
     private static final EventManager INSTANCE = new EventManager();
 
-    private final Map<Class<? extends Event>, List<EventHandler<?>>> eventHandlerMap;
+    private final Object registrationLock = new Object();
+    // Handlers registered for exactly that class, the map is never modified once published
+    private volatile Map<Class<? extends Event>, Registration[]> eventHandlerMap;
+    // Handlers for the class and all its superclasses, filled lazily
+    private volatile ConcurrentMap<Class<?>, HandlerList> dispatchCache;
+    // [direction][packetId], sorted by priority, replaced on registration just like eventHandlerMap
+    private volatile Registration[][][] packetHandlers;
 
     private EventManager() {
-        this.eventHandlerMap = new HashMap<>();
+        this.eventHandlerMap = Collections.emptyMap();
+        this.dispatchCache = new ConcurrentHashMap<>();
+        this.packetHandlers = new Registration[Direction.values().length][PACKET_ID_COUNT][];
+        for (Registration[][] directionHandlers : packetHandlers) {
+            Arrays.fill(directionHandlers, NO_REGISTRATIONS);
+        }
     }
 
     public static EventManager getInstance() {
         return INSTANCE;
     }
 
-    public synchronized <T extends Event> void registerEventHandler(
+    public <T extends Event> void registerEventHandler(
             Class<T> eventClass, EventHandler<T> eventHandler
+    ) {
+        registerEventHandler(eventClass, DEFAULT_PRIORITY, eventHandler);
+    }
+
+    public <T extends Event> void registerEventHandler(
+            Class<T> eventClass, int priority, EventHandler<T> eventHandler
+    ) {
+        registerEventHandler(eventClass, priority, eventHandler, false);
+    }
+
+    /*
+     * Non-cancellable events are delivered to the handler by a worker thread
+     * of AsyncEventDispatcher, so it doesn't stall packet forwarding. Events
+     * of the same connection are delivered in order, but they may be dropped
+     * if the handlers are too slow to keep up. Cancellable events have to be
+     * handled before the proxy proceeds, so the handler receives them
+     * synchronously (after all synchronous handlers).
+     */
+    public <T extends Event> void registerAsyncEventHandler(
+            Class<T> eventClass, EventHandler<T> eventHandler
+    ) {
+        registerEventHandler(eventClass, DEFAULT_PRIORITY, eventHandler, true);
+    }
+
+    private <T extends Event> void registerEventHandler(
+            Class<T> eventClass, int priority, EventHandler<T> eventHandler, boolean async
     ) {
         Objects.requireNonNull(eventClass);
         Objects.requireNonNull(eventHandler);
 
-        List<EventHandler<? extends Event>> eventHandlerList =
-                eventHandlerMap.computeIfAbsent(eventClass, (key) -> new ArrayList<>());
-        eventHandlerList.add(eventHandler);
+        synchronized (registrationLock) {
+            Map<Class<? extends Event>, Registration[]> newEventHandlerMap =
+                    new HashMap<>(eventHandlerMap);
+            Registration[] registrations =
+                    newEventHandlerMap.getOrDefault(eventClass, NO_REGISTRATIONS);
+            registrations = Arrays.copyOf(registrations, registrations.length + 1);
+            registrations[registrations.length - 1] =
+                    new Registration(eventHandler, priority, async);
+            newEventHandlerMap.put(eventClass, registrations);
+
+            eventHandlerMap = newEventHandlerMap;
+            // the map has to be replaced after eventHandlerMap, see getHandlers()
+            dispatchCache = new ConcurrentHashMap<>();
+        }
+    }
+
+    // Uses publicLookup(), so only public methods of public classes are supported
+    public void registerListener(Object listener) {
+        registerListener(listener, MethodHandles.publicLookup());
+    }
+
+    /*
+     * Registers every @Subscribe method declared in the listener's class. Pass
+     * MethodHandles.lookup() obtained in that class: each method is bound to
+     * a direct call once (using LambdaMetafactory), so there is no reflection
+     * when an event is dispatched. If the lookup doesn't allow that, methods
+     * are invoked through MethodHandles instead.
+     */
+    public void registerListener(Object listener, MethodHandles.Lookup lookup) {
+        Objects.requireNonNull(listener);
+        Objects.requireNonNull(lookup);
+
+        for (Method method : listener.getClass().getDeclaredMethods()) {
+            Subscribe subscribe = method.getAnnotation(Subscribe.class);
+            if (subscribe == null) continue;
+
+            Class<?>[] parameterTypes = method.getParameterTypes();
+            if (Modifier.isStatic(method.getModifiers()) ||
+                    method.getReturnType() != void.class ||
+                    parameterTypes.length != 1 ||
+                    !Event.class.isAssignableFrom(parameterTypes[0])
+            ) {
+                throw new IllegalArgumentException(method + " should be a non-static " +
+                        "void method taking a single Event parameter");
+            }
+            @SuppressWarnings("unchecked")
+            Class<Event> eventClass = (Class<Event>) parameterTypes[0];
+
+            SubscriberInvoker invoker;
+            try {
+                invoker = bind(listener, method, lookup);
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Could not access " + method, e);
+            }
+            registerEventHandler(eventClass, subscribe.priority(),
+                    new SubscribedHandler(invoker, subscribe.ignoreCancelled()), subscribe.async());
+        }
+    }
+
+    private static SubscriberInvoker bind(
+            Object listener, Method method, MethodHandles.Lookup lookup
+    ) throws IllegalAccessException {
+        MethodHandle handle = lookup.unreflect(method);
+        try {
+            CallSite callSite = LambdaMetafactory.metafactory(lookup, "invoke",
+                    MethodType.methodType(SubscriberInvoker.class, method.getDeclaringClass()),
+                    MethodType.methodType(void.class, Event.class),
+                    handle,
+                    MethodType.methodType(void.class, method.getParameterTypes()[0]));
+
+            return (SubscriberInvoker) callSite.getTarget().invoke(listener);
+        } catch (Throwable t) {
+            // e.g. the lookup doesn't have private access to the listener's class
+            if (ClassyCord.DEBUG) {
+                Log.w("Could not bind " + method + " using LambdaMetafactory", t);
+            }
+        }
+        MethodHandle bound = handle.bindTo(listener)
+                .asType(MethodType.methodType(void.class, Event.class));
+
+        // the statement form is required, invokeExact() has to return void here
+        return event -> {
+            bound.invokeExact(event);
+        };
+    }
+
+    /*
+     * The handler receives data receive events of the given direction only if
+     * they contain a whole packet with one of the given packetIds. Unlike
+     * handlers registered for the event class, it isn't called for data
+     * received while the PacketFramer is out of sync (see isWholePacket())
+     * or for events cancelled by the handlers called before it.
+     */
+    public void registerEventHandler(
+            Direction direction,
+            EventHandler<HandlerThread.ServerboundDataReceiveEvent> eventHandler,
+            int... packetIds
+    ) {
+        registerEventHandler(direction, DEFAULT_PRIORITY, eventHandler, packetIds);
+    }
+
+    public void registerEventHandler(
+            Direction direction,
+            int priority,
+            EventHandler<HandlerThread.ServerboundDataReceiveEvent> eventHandler,
+            int... packetIds
+    ) {
+        Objects.requireNonNull(direction);
+        Objects.requireNonNull(eventHandler);
+        for (int packetId : packetIds) {
+            if (packetId < 0 || packetId >= PACKET_ID_COUNT) {
+                throw new IllegalArgumentException("Invalid packetId: " + packetId);
+            }
+        }
+
+        synchronized (registrationLock) {
+            Registration[][][] newPacketHandlers = packetHandlers.clone();
+            Registration[][] directionHandlers =
+                    newPacketHandlers[direction.ordinal()].clone();
+            Registration registration = new Registration(eventHandler, priority, false);
+            nextPacketId:
+            for (int packetId : packetIds) {
+                Registration[] registrations = directionHandlers[packetId];
+                int position = registrations.length;
+                for (int i = registrations.length - 1; i >= 0; i--) {
+                    // the same packetId might have been passed twice
+                    if (registrations[i].eventHandler == eventHandler) continue nextPacketId;
+                    // keeping the registration order of equal priorities
+                    if (registrations[i].priority > priority) position = i;
+                }
+                Registration[] newRegistrations = new Registration[registrations.length + 1];
+                System.arraycopy(registrations, 0, newRegistrations, 0, position);
+                newRegistrations[position] = registration;
+                System.arraycopy(registrations, position,
+                        newRegistrations, position + 1, registrations.length - position);
+                directionHandlers[packetId] = newRegistrations;
+            }
+            newPacketHandlers[direction.ordinal()] = directionHandlers;
+
+            packetHandlers = newPacketHandlers;
+        }
+    }
+
+    /*
+     * Lets hot paths skip constructing an event nobody is interested in.
+     * Takes the handlers of superclasses into account, just like fireEvent().
+     */
+    public boolean hasListeners(Class<? extends Event> eventClass) {
+        return getHandlers(eventClass) != EMPTY_HANDLER_LIST;
+    }
+
+    // Same as above, but also counts the handlers interested in this packetId only
+    public boolean hasListeners(
+            Class<? extends HandlerThread.ServerboundDataReceiveEvent> eventClass,
+            Direction direction,
+            int packetId
+    ) {
+        return hasListeners(eventClass) ||
+                packetHandlers[direction.ordinal()][packetId].length != 0;
     }
 
-    public synchronized <T extends Event> void fireEvent(T event) {
+    public <T extends Event> void fireEvent(T event) {
         Objects.requireNonNull(event);
 
         if (ClassyCord.DEBUG) {
@@ -37,14 +337,96 @@ public class EventManager {
             Log.i("Firing event " + event.getClass().getName());
         }
 
-        Class<? extends Event> eventClass = event.getClass();
-        if (!eventHandlerMap.containsKey(eventClass)) return;
+        HandlerList handlerList = getHandlers(event.getClass());
+        Registration[] packetRegistrations = getPacketHandlers(event);
+        EventHandler<?>[] eventHandlers = handlerList.eventHandlers;
+        int j = 0;
+        for (int i = 0; i < eventHandlers.length; i++) {
+            for (; j < packetRegistrations.length &&
+                    packetRegistrations[j].priority < handlerList.priorities[i]; j++
+            ) {
+                handlePacketEvent(packetRegistrations[j], event);
+            }
+            handleEvent(eventHandlers[i], event);
+        }
+        for (; j < packetRegistrations.length; j++) {
+            handlePacketEvent(packetRegistrations[j], event);
+        }
+        if (handlerList.asyncEventHandlers.length != 0) {
+            if (event.isCancellable()) {
+                for (EventHandler<?> eventHandler : handlerList.asyncEventHandlers) {
+                    handleEvent(eventHandler, event);
+                }
+            } else {
+                ClassyCord.getInstance().getAsyncEventDispatcher()
+                        .dispatch(event, handlerList.asyncEventHandlers);
+            }
+        }
+    }
+
+    private Registration[] getPacketHandlers(Event event) {
+        if (!(event instanceof HandlerThread.ServerboundDataReceiveEvent)) {
+            return NO_REGISTRATIONS;
+        }
+        HandlerThread.ServerboundDataReceiveEvent dataEvent =
+                (HandlerThread.ServerboundDataReceiveEvent) event;
+        if (!dataEvent.isWholePacket()) return NO_REGISTRATIONS;
+
+        Direction direction = (event instanceof HandlerThread.ClientboundDataReceiveEvent ?
+                Direction.CLIENTBOUND : Direction.SERVERBOUND);
 
-        List<EventHandler<? extends Event>> handlerList =
-                eventHandlerMap.get(eventClass);
-        for (EventHandler<? extends Event> eventHandler : handlerList) {
-            //noinspection unchecked
-            ((EventHandler<T>) eventHandler).handleEvent(event);
+        return packetHandlers[direction.ordinal()][dataEvent.getPacketId()];
+    }
+
+    private static void handlePacketEvent(Registration registration, Event event) {
+        if (event.isCancelled()) return;
+
+        handleEvent(registration.eventHandler, event);
+    }
+
+    /*
+     * Handlers are looked up by the class of the event (or one of its
+     * superclasses) they were registered for, so the event is always
+     * assignable to what the handler expects.
+     */
+    @SuppressWarnings("unchecked")
+    static void handleEvent(EventHandler<?> eventHandler, Event event) {
+        ((EventHandler<Event>) eventHandler).handleEvent(event);
+    }
+
+    private HandlerList getHandlers(Class<?> eventClass) {
+        ConcurrentMap<Class<?>, HandlerList> cache = dispatchCache;
+        HandlerList handlerList = cache.get(eventClass);
+        if (handlerList != null) return handlerList;
+
+        // if the cache is up-to-date, eventHandlerMap is up-to-date too
+        Map<Class<? extends Event>, Registration[]> eventHandlerMap = this.eventHandlerMap;
+        List<Registration> registrationList = new ArrayList<>();
+        for (Class<?> clazz = eventClass; clazz != null &&
+                Event.class.isAssignableFrom(clazz); clazz = clazz.getSuperclass()
+        ) {
+            Registration[] registered = eventHandlerMap.get(clazz);
+            if (registered != null) Collections.addAll(registrationList, registered);
         }
+        // the sort is stable, so more specific classes still come first
+        registrationList.sort(Comparator.comparingInt(registration -> registration.priority));
+        List<EventHandler<?>> handlers = new ArrayList<>();
+        List<Integer> priorities = new ArrayList<>();
+        List<EventHandler<?>> asyncHandlers = new ArrayList<>();
+        for (Registration registration : registrationList) {
+            if (registration.async) {
+                asyncHandlers.add(registration.eventHandler);
+            } else {
+                handlers.add(registration.eventHandler);
+                priorities.add(registration.priority);
+            }
+        }
+        handlerList = (registrationList.isEmpty() ? EMPTY_HANDLER_LIST : new HandlerList(
+                handlers.toArray(NO_HANDLERS),
+                priorities.stream().mapToInt(Integer::intValue).toArray(),
+                asyncHandlers.toArray(NO_HANDLERS)));
+        cache.putIfAbsent(eventClass, handlerList);
+
+        return handlerList;
     }
 }
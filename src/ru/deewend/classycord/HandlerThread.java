@@ -2,7 +2,17 @@ package ru.deewend.classycord;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 public class HandlerThread extends Thread {
     public static abstract class HandlerThreadEvent extends Event {
@@ -57,22 +67,64 @@ public class HandlerThread extends Thread {
 
     // Proxy (or Origin Server if the Client is authenticated) <- Client
     public static class ServerboundDataReceiveEvent extends HandlerThreadEvent {
-        private final byte[] packet;
+        private final PooledBuffer packet;
+        private final boolean wholePacket;
 
         public ServerboundDataReceiveEvent(
                 HandlerThread thread, SocketHolder holder, byte[] packet
+        ) {
+            this(thread, holder, PooledBuffer.wrap(packet), false);
+        }
+
+        /*
+         * wholePacket is false if the PacketFramer has lost packet boundaries
+         * (see PacketFramer), in that case the event contains an arbitrary
+         * fragment of the data.
+         */
+        public ServerboundDataReceiveEvent(
+                HandlerThread thread, SocketHolder holder, PooledBuffer packet, boolean wholePacket
         ) {
             super(true, thread, holder);
 
             this.packet = packet;
+            this.wholePacket = wholePacket;
         }
 
+        // Returns a copy of the packet, you may keep it as long as you want
         public byte[] getPacket() {
-            byte[] packet = new byte[this.packet.length];
-            System.arraycopy(this.packet, 0, packet, 0, packet.length);
+            return packet.toByteArray();
+        }
 
+        /*
+         * Returns a read-only view of the packet (including its packetId)
+         * without copying it. The view is valid only while the event is being
+         * dispatched, the underlying buffer is reused afterwards.
+         */
+        public ByteBuffer getPacketView() {
+            return ByteBuffer.wrap(packet.array(), 0, packet.length()).slice().asReadOnlyBuffer();
+        }
+
+        /*
+         * Gives access to the packet without copying it. The buffer is
+         * recycled once the event has been handled, so call retain() on it
+         * if you need it later (and release() when you're done).
+         */
+        public PooledBuffer getPooledPacket() {
             return packet;
         }
+
+        public int getPacketId() {
+            return (packet.array()[0] & 0xFF);
+        }
+
+        // The packet without its packetId
+        public byte[] getPayload() {
+            return Arrays.copyOfRange(packet.array(), 1, packet.length());
+        }
+
+        public boolean isWholePacket() {
+            return wholePacket;
+        }
     }
 
     // Origin Server -> Client
@@ -82,6 +134,12 @@ public class HandlerThread extends Thread {
         ) {
             super(thread, holder, packet);
         }
+
+        public ClientboundDataReceiveEvent(
+                HandlerThread thread, SocketHolder holder, PooledBuffer packet, boolean wholePacket
+        ) {
+            super(thread, holder, packet, wholePacket);
+        }
     }
 
     // The event signals you can now use holder.getUsername() method
@@ -159,11 +217,17 @@ public class HandlerThread extends Thread {
         }
 
         public void printStackTrace(boolean warn) {
+            byte level = (warn ? Log.LOG_LEVEL_WARN : Log.LOG_LEVEL_SEVERE);
+            if (stacktrace == null) {
+                Log.l(level, "        (launch the proxy with -D" +
+                        CAPTURE_TASK_STACK_TRACES_PROPERTY + "=true to see it)");
+
+                return;
+            }
             for (int i = 1; i < stacktrace.length; i++) {
                 StackTraceElement element = stacktrace[i];
 
-                Log.l((warn ? Log.LOG_LEVEL_WARN : Log.LOG_LEVEL_SEVERE),
-                        "        at " + element.toString());
+                Log.l(level, "        at " + element.toString());
             }
         }
 
@@ -180,27 +244,82 @@ public class HandlerThread extends Thread {
         }
     }
 
+    public static final String CAPTURE_TASK_STACK_TRACES_PROPERTY = "ccCaptureTaskStackTraces";
+    // Capturing a stacktrace is way more expensive than enqueuing a task itself
+    public static final boolean CAPTURE_TASK_STACK_TRACES = Boolean.parseBoolean(System
+            .getProperty(CAPTURE_TASK_STACK_TRACES_PROPERTY, String.valueOf(ClassyCord.DEBUG)));
     public static final int MAX_ACTIVE_CONNECTIONS_COUNT =
             ClassyCord.getInstance().getMaxConnectionsCountPerHandlerThread();
     public static final long TICK_INTERVAL_MS =
             1000L / ClassyCord.getInstance().getTickRateOfHandlerThread();
     public static final long READ_TIMEOUT =
             ClassyCord.getInstance().getReadTimeoutMillis();
-    public static final long EXCEPTION_MAP_STORAGE_TIMEOUT =
-            ClassyCord.getInstance().getExceptionMapStorageTimeoutMillis();
+    public static final int SERVER_CONNECT_TIMEOUT =
+            ClassyCord.getInstance().getServerConnectTimeoutMillis();
+    public static final long HANDSHAKE_TIMEOUT =
+            ClassyCord.getInstance().getHandshakeTimeoutMillis();
     public static final int MIN_TICKS_TO_WAIT_BEFORE_RECONNECTING =
             ClassyCord.getInstance().getMinTicksToWaitBeforeReconnecting();
-
-    private final Queue<TaskContainer> taskList = new ArrayDeque<>();
+    // How long the GameServer has to stay silent before we're switching to the pending one
+    public static final long PENDING_SWITCH_DELAY_MS =
+            MIN_TICKS_TO_WAIT_BEFORE_RECONNECTING * TICK_INTERVAL_MS;
+    // How long a relay may take to send the Disconnect packet to a Client
+    public static final long DISCONNECT_FLUSH_TIMEOUT_MS = 1000L;
+    // One tick per slot, a revolution takes ~20 seconds at the default tick rate
+    public static final int TIMER_WHEEL_SLOT_COUNT = 512;
+    public static final int MAX_BYTES_PER_CONNECTION_PER_TICK =
+            ClassyCord.getInstance().getMaxBytesPerConnectionPerTick();
+    public static final int RELAY_BUFFER_SIZE =
+            Math.min(8192, MAX_BYTES_PER_CONNECTION_PER_TICK);
+    // For how long the classic engine keeps polling a connection between ticks after it has received something
+    public static final long ACTIVE_CONNECTION_TIMEOUT_MS = 1000L;
+    public static final long MIN_POLL_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(250L);
+    public static final long MAX_POLL_INTERVAL_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Math.min(TICK_INTERVAL_MS, 2L));
+
+    // Filled by any thread, drained by the HandlerThread only
+    private final Queue<TaskContainer> taskList = new ConcurrentLinkedQueue<>();
     private final List<SocketHolder> clientList = new ArrayList<>();
-    private final List<String> keysToRemove = new ArrayList<>();
-    private final Map<String, Pair<GameServer, Long>> exceptionMap = new HashMap<>();
+    private final Queue<Runnable> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final BufferPool bufferPool = new BufferPool();
+    // Connections with data in their outbound queues, see checkBackpressure()
+    private final Set<SocketHolder> queuedHolders = new HashSet<>();
+    // Classic engine: connections polled between ticks as well, see pollActiveConnections()
+    private final List<SocketHolder> activeHolders = new ArrayList<>();
+    // Timeouts of the connections, guarded by the HandlerThread monitor
+    private final TimerWheel timerWheel = new TimerWheel(TIMER_WHEEL_SLOT_COUNT, TICK_INTERVAL_MS);
+    // The following two fields are modified while holding the monitor only
+    private volatile int connectionCount;
+    private volatile int scheduledTaskCount;
+    private volatile int activeConnectionCount;
+    private long pollIntervalNanos = MIN_POLL_INTERVAL_NANOS;
+    private long forwardedBytes;
+    private long allocatedBytes; // while handling the forwarded bytes
+    private long highWatermarkHitCount;
+    private long hardCapDisconnectCount;
+    private final Selector selector;
+    private final boolean relaying;
+    private final boolean measureAllocations;
     private final int index;
 
     public HandlerThread(int index) {
         setName("handler (i=" + index + ")");
         setDaemon(true);
 
+        ClassyCord.IOEngine ioEngine = ClassyCord.getInstance().getIOEngine();
+        if (ioEngine == ClassyCord.IOEngine.NIO) {
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                throw new RuntimeException("Could not open a Selector", e);
+            }
+        } else {
+            selector = null;
+        }
+        this.relaying = (ioEngine == ClassyCord.IOEngine.RELAY);
+        // the JVM can't tell how much a virtual thread has allocated
+        this.measureAllocations = Utils.canMeasureAllocations() &&
+                !(relaying && Utils.VIRTUAL_THREADS_SUPPORTED);
         this.index = index;
     }
 
@@ -217,7 +336,20 @@ public class HandlerThread extends Thread {
         }
         SocketHolder holder;
         clientList.add((holder = new SocketHolder(this, socket)));
+        connectionCount = clientList.size();
+        holder.setReadTimeout(timerWheel.schedule(READ_TIMEOUT, () -> checkReadTimeout(holder)));
+        holder.setHandshakeTimeout(timerWheel.schedule(HANDSHAKE_TIMEOUT, () -> {
+            if (holder.getUsername() == null) close(holder, null);
+        }));
         EventManager.getInstance().fireEvent(new NewConnectionEvent(this, holder));
+        if (relaying) {
+            Utils.startVirtualThread("relay (client, " +
+                    Utils.getAddress(socket) + ")", () -> relayFromClient(holder));
+        } else if (!usesSelector()) {
+            // the Client is going to send the handshake right away, let's not wait for the next tick
+            markActive(holder, System.currentTimeMillis());
+            LockSupport.unpark(this);
+        }
 
         return true;
     }
@@ -226,146 +358,758 @@ public class HandlerThread extends Thread {
         addTask(task, false);
     }
 
+    /*
+     * Runs the task on this HandlerThread once the delay has passed. The
+     * returned ScheduledTask can be used to cancel it. If the task doesn't
+     * need to run on a specific HandlerThread, consider using Scheduler.
+     */
+    public ScheduledTask schedule(Runnable task, long delay, TimeUnit unit) {
+        ScheduledTask scheduledTask = new ScheduledTask(task, unit.toMillis(delay), 0L);
+        startScheduledTask(scheduledTask);
+
+        return scheduledTask;
+    }
+
+    // Same as above, but the task is run every period until it's cancelled
+    public ScheduledTask scheduleAtFixedRate(
+            Runnable task, long initialDelay, long period, TimeUnit unit
+    ) {
+        ScheduledTask scheduledTask = new ScheduledTask(task,
+                unit.toMillis(initialDelay), ScheduledTask.toPeriodMillis(period, unit));
+        startScheduledTask(scheduledTask);
+
+        return scheduledTask;
+    }
+
+    void startScheduledTask(ScheduledTask scheduledTask) {
+        if (Thread.holdsLock(this)) {
+            scheduledTask.start(this);
+        } else {
+            // the wheel is only touched while holding the monitor
+            addTask(() -> scheduledTask.start(this));
+        }
+    }
+
+    // The following two methods should be called while holding the HandlerThread monitor
+    @SuppressWarnings("NonAtomicOperationOnVolatileField")
+    void scheduledTaskStarted() {
+        scheduledTaskCount++;
+    }
+
+    @SuppressWarnings("NonAtomicOperationOnVolatileField")
+    void scheduledTaskFinished() {
+        scheduledTaskCount--;
+    }
+
+    // Used by Scheduler to pick a HandlerThread
+    int getLoad() {
+        return connectionCount + scheduledTaskCount;
+    }
+
+    public int getScheduledTaskCount() {
+        return scheduledTaskCount;
+    }
+
+    /*
+     * If subscribe is true, the returned TaskContainer can be waited on until
+     * isFinished() returns true. Consider using submit() instead, it doesn't
+     * require a thread per waiter.
+     */
     public Object addTask(Runnable task, boolean subscribe) {
         Thread currentThread = Thread.currentThread();
-        StackTraceElement[] stacktrace = currentThread.getStackTrace();
+        StackTraceElement[] stacktrace =
+                (CAPTURE_TASK_STACK_TRACES ? currentThread.getStackTrace() : null);
 
         TaskContainer container = new TaskContainer(
                 task, currentThread, stacktrace, subscribe);
-        synchronized (this) {
-            taskList.offer(container);
-        }
+        // doesn't need the monitor, so we won't wait for the ongoing tick
+        taskList.offer(container);
+        if (currentThread != this) wakeup();
 
         return (subscribe ? container : null);
     }
 
-    @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
+    /*
+     * Runs the task on this HandlerThread (holding its monitor, like any other
+     * task). Unlike addTask(), an exception thrown by the task doesn't terminate
+     * the proxy, it completes the returned future exceptionally instead.
+     * Note that non-async dependent stages are run by the HandlerThread too.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        addTask(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+
+        return future;
+    }
+
+    /*
+     * Runs all the tasks one after another as a single task, so they are
+     * handled during the same tick. The future is completed with the results
+     * in the same order, or with the first exception (the remaining tasks are
+     * skipped in that case).
+     */
+    public <T> CompletableFuture<List<T>> submitAll(Collection<? extends Callable<? extends T>> tasks) {
+        CompletableFuture<List<T>> future = new CompletableFuture<>();
+        addTask(() -> {
+            List<T> results = new ArrayList<>(tasks.size());
+            try {
+                for (Callable<? extends T> task : tasks) results.add(task.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+
+                return;
+            }
+            future.complete(results);
+        });
+
+        return future;
+    }
+
+    // Makes the HandlerThread run the pending tasks without waiting for the next tick
+    void wakeup() {
+        if (usesSelector()) {
+            selector.wakeup();
+        } else {
+            LockSupport.unpark(this);
+        }
+    }
+
+    public boolean usesSelector() {
+        return selector != null;
+    }
+
+    // Both classic and NIO engines use non-blocking SocketChannels
+    public boolean usesChannels() {
+        return !relaying;
+    }
+
+    public boolean usesRelayThreads() {
+        return relaying;
+    }
+
+    /*
+     * Channels have to be registered by the HandlerThread itself,
+     * otherwise register() may block until the ongoing select() returns.
+     */
+    void registerChannel(
+            SocketChannel channel, SocketHolder holder, ChannelOutputStream outputStream
+    ) {
+        Runnable registration = () -> {
+            try {
+                outputStream.setSelectionKey(
+                        channel.register(selector, SelectionKey.OP_READ, holder));
+            } catch (ClosedChannelException ignored) {
+                /* The connection has already been closed. */
+            }
+        };
+        if (Thread.currentThread() == this) {
+            registration.run();
+        } else {
+            pendingRegistrations.offer(registration);
+            selector.wakeup();
+        }
+    }
+
     private synchronized void tick() {
-        if (ClassyCord.getInstance().shouldFireTickEvent()) {
+        if (ClassyCord.getInstance().shouldFireTickEvent() &&
+                EventManager.getInstance().hasListeners(TickEvent.class)
+        ) {
             EventManager.getInstance().fireEvent(new TickEvent(this));
         }
-        int taskListSize = taskList.size();
-        for (int i = 0; i < taskListSize; i++) {
-            TaskContainer container = taskList.poll();
-            //noinspection DataFlowIssue
-            Runnable task = container.task;
-            try {
-                task.run();
-            } catch (Throwable t) {
-                Log.s("Failed to complete a task:", t);
-                Log.s("Details of the thread which " +
-                        "enqueued the task: " + container.thread.toString());
-                Log.s("Stacktrace snapshot of " +
-                        "the thread at the moment the task was enqueued:");
-                container.printStackTrace(false);
-                Log.s("Date added: " + (new Date(container.timestamp)));
-                Log.s("The proxy will be terminated");
-
-                System.exit(-1);
+        runTasks();
+        long currentTimeMillis = System.currentTimeMillis();
+        // timeouts and pending server switches
+        timerWheel.advance(currentTimeMillis);
+
+        if (!usesSelector() && !relaying) {
+            // the classic engine has to visit every connection anyway
+            for (int i = clientList.size() - 1; i >= 0; i--) {
+                SocketHolder holder = clientList.get(i);
+                pollConnection(holder, currentTimeMillis);
             }
-            if (container.subscribed) {
-                synchronized (container) {
-                    container.finished = true;
-                    container.notifyAll();
-                }
+
+            return;
+        }
+        /*
+         * NIO is driven by the Selector and relay threads are reading by themselves.
+         * A stalled peer doesn't make them report anything though, so the hard
+         * cap timeouts and resuming of paused reading are checked here. The
+         * connections with empty queues are skipped.
+         */
+        if (!queuedHolders.isEmpty()) {
+            for (SocketHolder holder : queuedHolders.toArray(new SocketHolder[0])) {
+                checkBackpressure(holder, currentTimeMillis);
             }
         }
+    }
 
-        int clientListSize = clientList.size();
-        global: for (int i = clientListSize - 1; i >= 0; i--) {
-            SocketHolder holder = clientList.get(i);
-            long currentTimeMillis = System.currentTimeMillis();
+    // Used by the classic engine, sends the queued data and reads whatever has arrived
+    // Returns true if anything has been received from either side
+    private boolean pollConnection(SocketHolder holder, long currentTimeMillis) {
+        try {
+            boolean received = pollChannels(holder);
+            readFromClient(holder, currentTimeMillis);
+            readFromServer(holder, currentTimeMillis);
+            if (!checkBackpressure(holder, currentTimeMillis)) return false;
+            if (received && !holder.isClosed()) markActive(holder, currentTimeMillis);
+
+            return received;
+        } catch (Exception | SilentIOException e) {
+            close(holder, e);
+
+            return false;
+        }
+    }
+
+    private void markActive(SocketHolder holder, long currentTimeMillis) {
+        holder.setActiveUntil(currentTimeMillis + ACTIVE_CONNECTION_TIMEOUT_MS);
+        if (!holder.isActive()) {
+            holder.setActive(true);
+            activeHolders.add(holder);
+            activeConnectionCount = activeHolders.size();
+        }
+    }
 
-            for (Map.Entry<String, Pair<GameServer, Long>> entry : exceptionMap.entrySet()) {
-                long timestampAdded = entry.getValue().getSecond();
-                if (currentTimeMillis - timestampAdded >= EXCEPTION_MAP_STORAGE_TIMEOUT) {
-                    keysToRemove.add(entry.getKey());
+    /*
+     * Polls the connections which have received something during the last
+     * ACTIVE_CONNECTION_TIMEOUT_MS, so chatting players don't have to wait
+     * for the next tick. The ones which went quiet are dropped until a tick
+     * notices them again, so the syscalls between ticks are proportional to
+     * the number of active connections rather than all of them. The interval
+     * is doubled while nothing arrives, up to MAX_POLL_INTERVAL_NANOS.
+     */
+    private synchronized void pollActiveConnections() {
+        long currentTimeMillis = System.currentTimeMillis();
+        boolean received = false;
+        for (int i = activeHolders.size() - 1; i >= 0; i--) {
+            SocketHolder holder = activeHolders.get(i);
+            if (currentTimeMillis >= holder.getActiveUntil()) {
+                holder.setActive(false);
+                activeHolders.remove(i);
+
+                continue;
+            }
+            if (pollConnection(holder, currentTimeMillis)) received = true;
+        }
+        activeConnectionCount = activeHolders.size();
+        pollIntervalNanos = (received ? MIN_POLL_INTERVAL_NANOS :
+                Math.min(pollIntervalNanos * 2, MAX_POLL_INTERVAL_NANOS));
+    }
+
+    @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
+    private void runTasks() {
+        // called between ticks very often, so let's not take the monitor for nothing
+        if (taskList.isEmpty()) return;
+
+        synchronized (this) {
+            // tasks enqueued by the tasks themselves will be run next time
+            int taskListSize = taskList.size();
+            for (int i = 0; i < taskListSize; i++) {
+                TaskContainer container = taskList.poll();
+                //noinspection DataFlowIssue
+                Runnable task = container.task;
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    Log.s("Failed to complete a task:", t);
+                    Log.s("Details of the thread which " +
+                            "enqueued the task: " + container.thread.toString());
+                    Log.s("Stacktrace snapshot of " +
+                            "the thread at the moment the task was enqueued:");
+                    container.printStackTrace(false);
+                    Log.s("Date added: " + (new Date(container.timestamp)));
+                    Log.s("The proxy will be terminated");
+
+                    System.exit(-1);
+                }
+                if (container.subscribed) {
+                    synchronized (container) {
+                        container.finished = true;
+                        container.notifyAll();
+                    }
                 }
             }
-            Utils.removeKeys(keysToRemove, exceptionMap);
+        }
+    }
 
-            try {
-                while (true) {
-                    int bytesCount = holder.getState().getExpectedClientPacketLength();
-                    InputStream clientInputStream = holder.getInputStream();
-                    int available = clientInputStream.available();
-                    if (available >= bytesCount) {
-                        byte[] packet = new byte[(bytesCount ==
-                                SocketHolder.ANY_PACKET_LENGTH ? available : bytesCount)];
-                        //noinspection ResultOfMethodCallIgnored
-                        clientInputStream.read(packet);
-                        handleDataFromClient(holder, packet);
-                        holder.setLastReadTimestamp(currentTimeMillis);
+    private void readFromClient(
+            SocketHolder holder, long currentTimeMillis
+    ) throws IOException, SilentIOException {
+        InputStream clientInputStream = holder.getInputStream();
+        boolean received = false;
+        int available;
+        while ((available = clientInputStream.available()) > 0) {
+            holder.getClientFramer().readFrom(clientInputStream, available);
+            handleClientPackets(holder);
+            received = true;
+        }
+        if (received) {
+            flush(holder.getServerOutputStream());
+            holder.setLastReadTimestamp(currentTimeMillis);
+        }
+    }
+
+    private void readFromServer(
+            SocketHolder holder, long currentTimeMillis
+    ) throws IOException, SilentIOException {
+        if (holder.getGameServer() == null) return;
+        if (holder.getState() == SocketHolder.State.CONNECTING_TO_SERVER) return;
+
+        InputStream serverInputStream = holder.getServerInputStream();
+        boolean received = false;
+        int available;
+        while ((available = serverInputStream.available()) > 0) {
+            holder.getServerFramer().readFrom(serverInputStream, available);
+            handleServerPackets(holder);
+            received = true;
+        }
+        if (received) {
+            flush(holder.getOutputStream());
+            holder.setLastServerReadTimestamp(currentTimeMillis);
+        }
+    }
+
+    // Everything written while handling a bunch of packets is sent at once
+    private static void flush(OutputStream stream) throws IOException {
+        if (stream != null) stream.flush();
+    }
+
+    /*
+     * There is no Selector in the classic mode, so we're checking the channels
+     * ourselves. Queued data is written without blocking, whatever doesn't
+     * fit into the budget stays in the socket until the next poll, when we
+     * continue right where we've stopped.
+     */
+    private static boolean pollChannels(SocketHolder holder) throws IOException {
+        boolean received = pollChannel(holder.getInputStream(), holder.getOutputStream(),
+                holder.getServerboundBackpressure().isPaused());
+        // not using || since the server side has to be polled too
+        return pollChannel(holder.getServerInputStream(), holder.getServerOutputStream(),
+                holder.getClientboundBackpressure().isPaused()) | received;
+    }
+
+    private static boolean pollChannel(
+            InputStream inputStream, OutputStream outputStream, boolean readingPaused
+    ) throws IOException {
+        if (outputStream instanceof ChannelOutputStream) {
+            ((ChannelOutputStream) outputStream).drain();
+        }
+        if (!readingPaused && inputStream instanceof ChannelInputStream) {
+            return ((ChannelInputStream) inputStream).fill(MAX_BYTES_PER_CONNECTION_PER_TICK) != 0;
+        }
+
+        return false;
+    }
+
+    /*
+     * Pauses reading from one side of the connection while the outbound
+     * queue of the other side is too long (see Backpressure). Returns false
+     * if the connection has been closed because a queue has stayed above
+     * the hard cap for too long.
+     */
+    private boolean checkBackpressure(SocketHolder holder, long currentTimeMillis) {
+        Backpressure clientbound = holder.getClientboundBackpressure();
+        int clientboundQueued = getQueuedByteCount(holder.getOutputStream());
+        if (clientbound.update(clientboundQueued, currentTimeMillis)) {
+            if (clientbound.isPaused()) highWatermarkHitCount++;
+            setReadInterest(holder.getServerOutputStream(), !clientbound.isPaused());
+            // waking up the relay which is waiting in awaitReading()
+            if (relaying) notifyAll();
+        }
+        Backpressure serverbound = holder.getServerboundBackpressure();
+        int serverboundQueued = getQueuedByteCount(holder.getServerOutputStream());
+        if (serverbound.update(serverboundQueued, currentTimeMillis)) {
+            if (serverbound.isPaused()) highWatermarkHitCount++;
+            setReadInterest(holder.getOutputStream(), !serverbound.isPaused());
+            // waking up the relay which is waiting in awaitReading()
+            if (relaying) notifyAll();
+        }
+
+        String reason = null;
+        if (clientbound.hasStayedAboveHardCap(currentTimeMillis) ||
+                isFlushStalled(holder.getOutputStream(), currentTimeMillis)
+        ) {
+            reason = "Your connection is too slow";
+        } else if (serverbound.hasStayedAboveHardCap(currentTimeMillis) ||
+                isFlushStalled(holder.getServerOutputStream(), currentTimeMillis)
+        ) {
+            reason = "The server is not responding";
+        }
+        if (reason != null) {
+            hardCapDisconnectCount++;
+            close(holder, new SilentIOException(reason));
+
+            return false;
+        }
+        // tick() keeps checking the connection until both queues are drained
+        if (clientboundQueued != 0 || serverboundQueued != 0 ||
+                clientbound.isPaused() || serverbound.isPaused()
+        ) {
+            queuedHolders.add(holder);
+        } else {
+            queuedHolders.remove(holder);
+        }
+
+        return true;
+    }
+
+    private static int getQueuedByteCount(OutputStream stream) {
+        if (stream instanceof ChannelOutputStream) {
+            return ((ChannelOutputStream) stream).getQueuedByteCount();
+        }
+        if (stream instanceof QueuedOutputStream) {
+            return ((QueuedOutputStream) stream).getQueuedByteCount();
+        }
+
+        return 0;
+    }
+
+    private static void setReadInterest(OutputStream stream, boolean interested) {
+        if (stream instanceof ChannelOutputStream) {
+            ((ChannelOutputStream) stream).setReadInterest(interested);
+        }
+    }
+
+    /*
+     * A relay thread stops reading while it's blocked on flushing, but the
+     * other relay thread of the connection may keep queueing data as long as
+     * the queue stays below the high watermark (see awaitReading()).
+     * If a single write has been blocked for too long, the peer is
+     * considered to be stalled, no matter how long the queue is.
+     */
+    private static boolean isFlushStalled(OutputStream stream, long currentTimeMillis) {
+        if (!(stream instanceof QueuedOutputStream)) return false;
+
+        long flushStartTimestamp = ((QueuedOutputStream) stream).getFlushStartTimestamp();
+
+        return flushStartTimestamp != 0L &&
+                currentTimeMillis - flushStartTimestamp >= Backpressure.HARD_CAP_TIMEOUT;
+    }
+
+    // Handles every packet which has been fully received from the Client so far
+    private void handleClientPackets(SocketHolder holder) throws IOException, SilentIOException {
+        handlePackets(holder, holder.getClientFramer(), true);
+    }
+
+    // Handles every packet which has been fully received from the GameServer so far
+    private void handleServerPackets(SocketHolder holder) throws IOException, SilentIOException {
+        handlePackets(holder, holder.getServerFramer(), false);
+    }
+
+    private void handlePackets(
+            SocketHolder holder, PacketFramer framer, boolean fromClient
+    ) throws IOException, SilentIOException {
+        long allocatedBefore = (measureAllocations ? Utils.getCurrentThreadAllocatedBytes() : -1L);
+        try {
+            int length;
+            while ((length = framer.nextPacketLength()) > 0) {
+                PooledBuffer packet = bufferPool.acquire(length);
+                System.arraycopy(framer.getBuffer(),
+                        framer.getPosition(), packet.array(), 0, length);
+                framer.skip(length);
+                forwardedBytes += length;
+                PooledBuffer transformed = packet;
+                try {
+                    boolean wholePacket = framer.isSynced();
+                    if (fromClient && wholePacket) recordClientExtension(holder, packet);
+                    PacketPipeline pipeline = (fromClient ?
+                            holder.getServerboundPipeline() : holder.getClientboundPipeline());
+                    // transformers can't do anything meaningful with arbitrary fragments
+                    if (wholePacket && !pipeline.isEmpty()) {
+                        transformed = pipeline.process(holder, packet);
+                        if (transformed == null) continue;
+                        checkTransformedPacket(holder, transformed, fromClient);
+                    }
+                    if (fromClient) {
+                        handleDataFromClient(holder, transformed, wholePacket);
                     } else {
-                        if (Utils.delta(holder.getLastReadTimestamp()) >= READ_TIMEOUT) {
-                            close(holder, null);
+                        handleDataFromServer(holder, transformed, wholePacket);
+                    }
+                } catch (RuntimeException | IOException | SilentIOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException("A PacketTransformer has failed", e);
+                } finally {
+                    packet.release();
+                    if (transformed != null && transformed != packet) transformed.release();
+                }
+            }
+        } finally {
+            if (allocatedBefore != -1L) {
+                allocatedBytes += Utils.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            }
+        }
+    }
 
-                            continue global;
-                        }
+    /*
+     * The receiving side splits the data into packets by their packetIds, so
+     * a transformed packet of a wrong length would desync it for the rest of
+     * the session. Packets of unknown types are let through, as the framer
+     * forwards them as is too.
+     */
+    private static void checkTransformedPacket(
+            SocketHolder holder, PooledBuffer packet, boolean fromClient
+    ) throws IOException {
+        int length = packet.length();
+        if (length == 0) throw new IOException("A PacketTransformer has returned an empty packet");
+
+        int packetId = (packet.array()[0] & 0xFF);
+        int extensions = holder.getNegotiatedExtensions();
+        int expectedLength = (fromClient ?
+                Protocol.getServerboundPacketLength(packetId, extensions) :
+                Protocol.getClientboundPacketLength(packetId, extensions));
+        if (expectedLength != Protocol.UNKNOWN_LENGTH && length != expectedLength) {
+            throw new IOException("A PacketTransformer has returned a packet of length " +
+                    length + " (packetId " + packetId + ", expected " + expectedLength + ")");
+        }
+    }
 
-                        break;
+    /*
+     * The framers depend on the extensions both sides have announced, so they
+     * are recorded before event handlers and transformers see the packet.
+     */
+    private static void recordClientExtension(SocketHolder holder, PooledBuffer packet) {
+        byte[] b = packet.array();
+        if ((b[0] & 0xFF) != Utils.EXT_ENTRY_PACKET) return;
+
+        String extName = Utils.readMCString(b, 1);
+        int version = Utils.readInt(b, 1 + Utils.PROTOCOL_STRING_LENGTH);
+        holder.addClientExtension(extName, version);
+    }
+
+    /*
+     * Run by the timer wheel. Reading doesn't touch the wheel, so instead of
+     * rescheduling the timeout on every read we're checking the timestamps
+     * once it expires and scheduling it again for the remaining time.
+     */
+    private void checkReadTimeout(SocketHolder holder) {
+        long lastReadTimestamp = holder.getLastReadTimestamp();
+        if (holder.getGameServer() != null) {
+            lastReadTimestamp = Math.min(lastReadTimestamp, holder.getLastServerReadTimestamp());
+        }
+        long remaining = READ_TIMEOUT - Utils.delta(lastReadTimestamp);
+        if (remaining <= 0L) {
+            close(holder, null);
+
+            return;
+        }
+        holder.setReadTimeout(timerWheel.schedule(remaining, () -> checkReadTimeout(holder)));
+    }
+
+    // Called by SocketHolder#setPendingGameServer()
+    void schedulePendingSwitch(SocketHolder holder) {
+        holder.setPendingSwitchTimeout(timerWheel.schedule(PENDING_SWITCH_DELAY_MS,
+                () -> checkPendingSwitch(holder)));
+    }
+
+    // Switches once the GameServer has stayed silent for PENDING_SWITCH_DELAY_MS
+    private void checkPendingSwitch(SocketHolder holder) {
+        GameServer pendingGameServer = holder.getPendingGameServer();
+        if (pendingGameServer == null) return;
+
+        long remaining = PENDING_SWITCH_DELAY_MS - Utils.delta(holder.getLastServerReadTimestamp());
+        if (remaining > 0L) {
+            holder.setPendingSwitchTimeout(timerWheel.schedule(remaining,
+                    () -> checkPendingSwitch(holder)));
+
+            return;
+        }
+        try {
+            holder.setGameServer(pendingGameServer);
+            holder.setPendingGameServer(null);
+        } catch (Exception e) {
+            close(holder, e);
+        }
+    }
+
+    /*
+     * Runs on a dedicated (virtual, if supported) thread. Blocking reads happen
+     * outside the HandlerThread monitor, the received data is handled inside of
+     * it, so plugins observe the same events as with other I/O engines.
+     */
+    private void relayFromClient(SocketHolder holder) {
+        InputStream clientInputStream = holder.getInputStream();
+        // only this thread touches the Client's PacketFramer
+        PacketFramer framer = holder.getClientFramer();
+        try {
+            while (true) {
+                if (!awaitReading(holder, holder.getServerboundBackpressure())) return;
+                if (framer.readFrom(clientInputStream, RELAY_BUFFER_SIZE) == -1) {
+                    throw new EOFException();
+                }
+
+                OutputStream serverOutputStream;
+                synchronized (this) {
+                    if (holder.isClosed()) return;
+
+                    handleClientPackets(holder);
+                    long currentTimeMillis = System.currentTimeMillis();
+                    holder.setLastReadTimestamp(currentTimeMillis);
+                    serverOutputStream = holder.getServerOutputStream();
+                    if (!checkBackpressure(holder, currentTimeMillis)) return;
+                }
+                // blocking writes are done outside the monitor, a slow
+                // peer shouldn't stall other connections of this HandlerThread
+                try {
+                    flush(serverOutputStream);
+                } catch (IOException e) {
+                    synchronized (this) {
+                        // the socket was closed because of switching to another server
+                        if (holder.getServerOutputStream() == serverOutputStream) throw e;
                     }
                 }
-                while (true) {
-                    if (holder.getGameServer() == null) break;
-
-                    int bytesCount = holder.getExpectedServerPacketLength();
-                    InputStream serverInputStream = holder.getServerInputStream();
-                    int available = serverInputStream.available();
-                    if (available >= bytesCount) {
-                        byte[] packet = new byte[(bytesCount ==
-                                SocketHolder.ANY_PACKET_LENGTH ? available : bytesCount)];
-                        //noinspection ResultOfMethodCallIgnored
-                        serverInputStream.read(packet);
-                        handleDataFromServer(holder, packet);
-                        holder.resetTicksNoNewDataFromServer();
-                        holder.setLastServerReadTimestamp(currentTimeMillis);
-                    } else {
-                        holder.incrementTicksNoNewDataFromServer();
-                        GameServer pendingGameServer = holder.getPendingGameServer();
-                        if (holder.getTicksNoNewDataFromServer() >=
-                                MIN_TICKS_TO_WAIT_BEFORE_RECONNECTING &&
-                                pendingGameServer != null
-                        ) {
-                            holder.setGameServer(pendingGameServer);
-                            holder.setPendingGameServer(null);
-                        }
-                        if (Utils.delta(holder.getLastServerReadTimestamp()) >= READ_TIMEOUT) {
-                            close(holder, null);
+                flush(holder.getOutputStream());
+            }
+        } catch (Exception | SilentIOException e) {
+            synchronized (this) {
+                if (!holder.isClosed()) close(holder, e);
+            }
+        }
+    }
 
-                            continue global;
-                        }
+    /*
+     * Called by a relay thread before reading from one side of the connection.
+     * While the outbound queue of the other side is above the high watermark,
+     * waits until checkBackpressure() reports it has dropped below the low
+     * one. Returns false if the connection has been closed in the meantime.
+     */
+    private synchronized boolean awaitReading(
+            SocketHolder holder, Backpressure backpressure
+    ) throws InterruptedException {
+        if (holder.isClosed()) return false;
+        if (!checkBackpressure(holder, System.currentTimeMillis())) return false;
+
+        while (backpressure.isPaused()) {
+            wait();
+            if (holder.isClosed()) return false;
+        }
 
-                        break;
+        return true;
+    }
+
+    // Executed as a task once a connector thread has finished its job
+    void finishConnecting(
+            SocketHolder holder, long attempt, Socket serverSocket, IOException error
+    ) {
+        if (holder.isClosed() || !holder.isCurrentConnectAttempt(attempt)) {
+            Utils.close(serverSocket);
+
+            return;
+        }
+        try {
+            if (error != null) {
+                String serverName = holder.getGameServer().getName();
+                Log.w("Could not connect " + holder
+                        .getUsername() + " to " + serverName + ": " + error);
+
+                throw new SilentIOException("Could not " +
+                        "connect to " + serverName + ", try again later");
+            }
+            holder.finishConnecting(serverSocket);
+            if (relaying) {
+                startServerRelay(holder);
+                // waking up the relay which is waiting for a new server socket
+                notifyAll();
+            }
+        } catch (Exception | SilentIOException e) {
+            close(holder, e);
+        }
+    }
+
+    private void startServerRelay(SocketHolder holder) {
+        if (!relaying || holder.hasServerRelay()) return;
+
+        holder.setHasServerRelay();
+        Utils.startVirtualThread("relay (server, " + Utils.getAddress(
+                holder.getSocket()) + ")", () -> relayFromServer(holder));
+    }
+
+    private void relayFromServer(SocketHolder holder) {
+        try {
+            while (true) {
+                Socket serverSocket;
+                InputStream serverInputStream;
+                // a new PacketFramer is created for each GameServer connection
+                PacketFramer framer;
+                if (!awaitReading(holder, holder.getClientboundBackpressure())) return;
+                synchronized (this) {
+                    while (holder.getServerSocket() == null) {
+                        if (holder.isClosed()) return;
+
+                        wait();
                     }
+                    if (holder.isClosed()) return;
+
+                    serverSocket = holder.getServerSocket();
+                    serverInputStream = holder.getServerInputStream();
+                    framer = holder.getServerFramer();
                 }
-            } catch (Exception | SilentIOException e) {
-                close(holder, e);
+
+                try {
+                    if (framer.readFrom(serverInputStream, RELAY_BUFFER_SIZE) == -1) {
+                        throw new EOFException();
+                    }
+                } catch (IOException e) {
+                    synchronized (this) {
+                        // the socket was closed because of switching to another server
+                        if (holder.getServerSocket() != serverSocket) continue;
+                    }
+
+                    throw e;
+                }
+
+                synchronized (this) {
+                    if (holder.isClosed()) return;
+                    // dropping what's left from the previous server
+                    if (holder.getServerSocket() != serverSocket) continue;
+
+                    handleServerPackets(holder);
+                    long currentTimeMillis = System.currentTimeMillis();
+                    holder.setLastServerReadTimestamp(currentTimeMillis);
+                    if (!checkBackpressure(holder, currentTimeMillis)) return;
+                }
+                flush(holder.getOutputStream());
+            }
+        } catch (Exception | SilentIOException e) {
+            synchronized (this) {
+                if (!holder.isClosed()) close(holder, e);
             }
         }
     }
 
     private void handleDataFromClient(
-            SocketHolder holder, byte[] packet
+            SocketHolder holder, PooledBuffer packet, boolean wholePacket
     ) throws IOException, SilentIOException {
-        ServerboundDataReceiveEvent event =
-                new ServerboundDataReceiveEvent(this, holder, packet);
-        EventManager.getInstance().fireEvent(event);
-        if (event.isCancelled()) return;
+        EventManager eventManager = EventManager.getInstance();
+        if (eventManager.hasListeners(ServerboundDataReceiveEvent.class,
+                EventManager.Direction.SERVERBOUND, packet.array()[0] & 0xFF)
+        ) {
+            ServerboundDataReceiveEvent event =
+                    new ServerboundDataReceiveEvent(this, holder, packet, wholePacket);
+            eventManager.fireEvent(event);
+            if (event.isCancelled()) return;
+        }
 
         SocketHolder.State state = holder.getState();
         if (state != SocketHolder.State.WAITING_FOR_PLAYER_IDENTIFICATION) {
             AnalyzingStream analyzingStream = holder.getAnalyzingStream();
-            if (!analyzingStream.isSuppressing()) {
-                OutputStream serverOutputStream = holder.getServerOutputStream();
-                serverOutputStream.write(packet);
-                serverOutputStream.flush();
+            if (state == SocketHolder.State.CONNECTING_TO_SERVER) {
+                if (!analyzingStream.isSuppressing()) holder.queueServerboundData(packet);
+            } else if (!analyzingStream.isSuppressing()) {
+                holder.getServerOutputStream().write(packet.array(), 0, packet.length());
             }
-            analyzingStream.write(packet);
+            analyzingStream.write(packet.array(), 0, packet.length());
 
             return;
         }
-        ByteArrayInputStream stream0 = new ByteArrayInputStream(packet);
+        ByteArrayInputStream stream0 =
+                new ByteArrayInputStream(packet.array(), 0, packet.length());
         DataInputStream stream = new DataInputStream(stream0);
 
         if (!state.checkClientPacketId(stream)) {
@@ -391,34 +1135,33 @@ public class HandlerThread extends Thread {
 
         EventManager.getInstance().fireEvent(new UserAuthenticationEvent(this, holder));
 
-        Pair<GameServer, Long> exception = exceptionMap.get(username);
-        GameServer desiredGameServer;
-        if (exception != null) {
-            desiredGameServer = exception.getFirst();
-            exceptionMap.remove(username);
-        } else {
+        GameServer desiredGameServer = ClassyCord.getInstance().getRouteCache().take(username);
+        if (desiredGameServer == null) {
             desiredGameServer = ClassyCord.getInstance().getFirstServer();
         }
         holder.setGameServer(desiredGameServer);
     }
 
     private void handleDataFromServer(
-            SocketHolder holder, byte[] packet
+            SocketHolder holder, PooledBuffer packet, boolean wholePacket
     ) throws IOException, SilentIOException {
-        ClientboundDataReceiveEvent event =
-                new ClientboundDataReceiveEvent(this, holder, packet);
-        EventManager.getInstance().fireEvent(event);
-        if (event.isCancelled()) return;
+        EventManager eventManager = EventManager.getInstance();
+        if (eventManager.hasListeners(ClientboundDataReceiveEvent.class,
+                EventManager.Direction.CLIENTBOUND, packet.array()[0] & 0xFF)
+        ) {
+            ClientboundDataReceiveEvent event =
+                    new ClientboundDataReceiveEvent(this, holder, packet, wholePacket);
+            eventManager.fireEvent(event);
+            if (event.isCancelled()) return;
+        }
 
         SocketHolder.State state = holder.getState();
         if (holder.isConnectingForTheFirstTime() || state == SocketHolder.State.CONNECTED) {
-            OutputStream clientOutputStream = holder.getOutputStream();
-            clientOutputStream.write(packet);
-            clientOutputStream.flush();
+            holder.getOutputStream().write(packet.array(), 0, packet.length());
         }
         AnalyzingStream analyzingStream = holder.getAnalyzingStream();
         analyzingStream.setServerMode(true);
-        analyzingStream.write(packet);
+        analyzingStream.write(packet.array(), 0, packet.length());
         analyzingStream.setServerMode(false);
         if (analyzingStream.isRecording()) {
             byte[] cpeHandshake = analyzingStream.stopRecording();
@@ -427,22 +1170,27 @@ public class HandlerThread extends Thread {
 
         if (state == SocketHolder.State.CONNECTED) return;
 
-        ByteArrayInputStream stream0 = new ByteArrayInputStream(packet);
+        ByteArrayInputStream stream0 =
+                new ByteArrayInputStream(packet.array(), 0, packet.length());
         DataInputStream stream = new DataInputStream(stream0);
 
+        int packetId = stream.readUnsignedByte();
         switch (state) {
-            case WAITING_FOR_SERVER_EXT_INFO_PT_1: {
-                int packetId = stream.readUnsignedByte();
+            case WAITING_FOR_SERVER_EXT_INFO: {
                 switch (packetId) {
                     case Utils.EXT_INFO_PACKET: {
-                        // we don't have to skip bytes since it's a "toy" stream
-                        holder.setState(SocketHolder.State.WAITING_FOR_SERVER_EXT_INFO_PT_2);
                         Boolean isCPEConnection = holder.isCPEConnection();
                         if (isCPEConnection != null && !isCPEConnection) {
                             byeBye(holder);
                         }
                         holder.setCPEConnection(true);
 
+                        stream.skipBytes(Utils.PROTOCOL_STRING_LENGTH); // AppName
+                        short extEntryCount = stream.readShort();
+                        holder.setExpectedServerExtEntryCount(extEntryCount);
+                        holder.setState(SocketHolder.State.WAITING_FOR_ALL_SERVER_EXT_ENTRIES);
+                        if (extEntryCount <= 0) finishServerCPEHandshake(holder, new Object[0][]);
+
                         break;
                     }
                     case Utils.SIDE_IDENTIFICATION_PACKET: {
@@ -466,47 +1214,18 @@ public class HandlerThread extends Thread {
 
                 break;
             }
-            case WAITING_FOR_SERVER_EXT_INFO_PT_2: {
-                short extEntryCount = stream.readShort();
-                holder.setExpectedServerExtEntryCount(extEntryCount);
-                holder.setState(SocketHolder.State.WAITING_FOR_ALL_SERVER_EXT_ENTRIES);
-
-                break;
-            }
             case WAITING_FOR_ALL_SERVER_EXT_ENTRIES: {
-                int extEntryCount = holder.getExpectedServerExtEntryCount();
-                Object[][] CPEArray = new Object[extEntryCount][2];
-                for (int i = 0; i < CPEArray.length; i++) {
-                    int packetId = stream.readUnsignedByte();
-                    if (packetId != Utils.EXT_ENTRY_PACKET) {
-                        // it's very unlikely we can notice a Disconnect
-                        // packet here; we've already received (extEntryCount * 69)
-                        // bytes
-
-                        throw new SilentIOException("Unexpected packetId");
-                    }
-                    String extName = Utils.readMCString(stream);
-                    int version = stream.readInt();
-
-                    CPEArray[i][0] = extName;
-                    CPEArray[i][1] = version;
+                if (packetId == Utils.DISCONNECT_PACKET) {
+                    throw new SilentIOException(Utils.readMCString(stream));
                 }
-                Object[][] initialCPEArray = holder
-                        .getServerCPEArrayConnectionWasInitializedWith();
-                if (initialCPEArray != null) {
-                    if (!Arrays.deepEquals(CPEArray, initialCPEArray)) {
-                        byeBye(holder);
-                    }
-                    byte[] clientCPEHandshake = holder.getClientCPEHandshake();
-                    OutputStream serverOutputStream = holder.getServerOutputStream();
-                    serverOutputStream.write(clientCPEHandshake);
-                    analyzingStream.finishSuppressing();
-                    serverOutputStream.flush();
-                } else {
-                    holder.setServerCPEArrayConnectionWasInitializedWith(CPEArray);
-                    holder.getAnalyzingStream().startRecording();
+                if (packetId != Utils.EXT_ENTRY_PACKET) {
+                    throw new SilentIOException("Unexpected packetId");
                 }
-                holder.setState(SocketHolder.State.CONNECTED);
+                String extName = Utils.readMCString(stream);
+                int version = stream.readInt();
+
+                Object[][] CPEArray = holder.addServerExtEntry(extName, version);
+                if (CPEArray != null) finishServerCPEHandshake(holder, CPEArray);
 
                 break;
             }
@@ -516,26 +1235,45 @@ public class HandlerThread extends Thread {
         }
     }
 
+    // Called once all ExtEntries have been received from the GameServer
+    private void finishServerCPEHandshake(
+            SocketHolder holder, Object[][] CPEArray
+    ) throws IOException, SilentIOException {
+        Object[][] initialCPEArray = holder.getServerCPEArrayConnectionWasInitializedWith();
+        if (initialCPEArray != null) {
+            if (!Arrays.deepEquals(CPEArray, initialCPEArray)) {
+                byeBye(holder);
+            }
+            byte[] clientCPEHandshake = holder.getClientCPEHandshake();
+            OutputStream serverOutputStream = holder.getServerOutputStream();
+            serverOutputStream.write(clientCPEHandshake);
+            holder.getAnalyzingStream().finishSuppressing();
+            serverOutputStream.flush();
+        } else {
+            holder.setServerCPEArrayConnectionWasInitializedWith(CPEArray);
+            holder.getAnalyzingStream().startRecording();
+        }
+        holder.setState(SocketHolder.State.CONNECTED);
+    }
+
     private void byeBye(SocketHolder holder) throws SilentIOException {
-        exceptionMap.put(holder.getUsername(),
-                Pair.of(holder.getGameServer(), System.currentTimeMillis()));
+        ClassyCord.getInstance().getRouteCache().put(holder.getUsername(), holder.getGameServer());
 
         throw new SilentIOException("Press \"Reconnect\" button");
     }
 
     @Override
-    @SuppressWarnings({"InfiniteLoopStatement", "BusyWait", "finally"})
+    @SuppressWarnings("finally")
     public void run() {
         synchronized (this) {
             EventManager.getInstance().fireEvent(new HandlerThreadStartEvent(this));
         }
 
         try {
-            while (true) {
-                long start = System.currentTimeMillis();
-                tick();
-                long delta = Utils.delta(start);
-                Thread.sleep(Math.max(TICK_INTERVAL_MS - delta, 1L));
+            if (usesSelector()) {
+                runSelectorLoop();
+            } else {
+                runPollingLoop();
             }
         } catch (Throwable t) {
             Log.s("An exception or error has occurred", t);
@@ -546,6 +1284,101 @@ public class HandlerThread extends Thread {
         }
     }
 
+    /*
+     * Ticks happen every TICK_INTERVAL_MS. In between we're parked until
+     * addTask() or addClient() unparks us. Every connection is polled on
+     * ticks, while the recently active ones are also polled between them
+     * (see pollActiveConnections()). With no active connections we're
+     * sleeping till the next tick.
+     */
+    @SuppressWarnings("InfiniteLoopStatement")
+    private void runPollingLoop() {
+        long nextTickTimestamp = 0L;
+        while (true) {
+            long currentTimeMillis = System.currentTimeMillis();
+            if (currentTimeMillis >= nextTickTimestamp) {
+                tick();
+                nextTickTimestamp = currentTimeMillis + TICK_INTERVAL_MS;
+            } else {
+                runTasks();
+                if (activeConnectionCount > 0) pollActiveConnections();
+            }
+            long parkNanos = TimeUnit.MILLISECONDS.toNanos(
+                    nextTickTimestamp - System.currentTimeMillis());
+            if (activeConnectionCount > 0) parkNanos = Math.min(parkNanos, pollIntervalNanos);
+            if (parkNanos > 0L) LockSupport.parkNanos(this, parkNanos);
+        }
+    }
+
+    @SuppressWarnings("InfiniteLoopStatement")
+    private void runSelectorLoop() throws IOException {
+        long nextTickTimestamp = 0L;
+        while (true) {
+            long currentTimeMillis = System.currentTimeMillis();
+            if (currentTimeMillis >= nextTickTimestamp) {
+                tick();
+                nextTickTimestamp = currentTimeMillis + TICK_INTERVAL_MS;
+
+                continue;
+            }
+            selector.select(nextTickTimestamp - currentTimeMillis);
+
+            Runnable registration;
+            while ((registration = pendingRegistrations.poll()) != null) {
+                registration.run();
+            }
+            // the Selector is woken up by addTask() as well
+            runTasks();
+            handleSelectedKeys();
+        }
+    }
+
+    private synchronized void handleSelectedKeys() {
+        Set<SelectionKey> selectedKeys = selector.selectedKeys();
+        if (selectedKeys.isEmpty()) return;
+
+        long currentTimeMillis = System.currentTimeMillis();
+        for (SelectionKey key : selectedKeys) {
+            SocketHolder holder = (SocketHolder) key.attachment();
+            // the connection might have been closed while handling a previous key
+            if (!key.isValid() || holder.isClosed()) continue;
+
+            boolean clientSide = (key.channel() == holder.getSocket().getChannel());
+            try {
+                if (key.isWritable()) {
+                    ((ChannelOutputStream) (clientSide ? holder.getOutputStream() :
+                            holder.getServerOutputStream())).drain();
+                    if (!checkBackpressure(holder, currentTimeMillis)) continue;
+                }
+                if (!key.isValid() || !key.isReadable()) continue;
+
+                Backpressure backpressure = (clientSide ?
+                        holder.getServerboundBackpressure() : holder.getClientboundBackpressure());
+                if (backpressure.isPaused()) {
+                    // the key was registered before we've decided to pause reading
+                    ((ChannelOutputStream) (clientSide ? holder.getOutputStream() :
+                            holder.getServerOutputStream())).setReadInterest(false);
+
+                    continue;
+                }
+                // the Selector will report the rest of the data on the next round
+                if (clientSide) {
+                    ((ChannelInputStream) holder.getInputStream())
+                            .fill(MAX_BYTES_PER_CONNECTION_PER_TICK);
+                    readFromClient(holder, currentTimeMillis);
+                } else {
+                    ((ChannelInputStream) holder.getServerInputStream())
+                            .fill(MAX_BYTES_PER_CONNECTION_PER_TICK);
+                    readFromServer(holder, currentTimeMillis);
+                }
+                checkBackpressure(holder, currentTimeMillis);
+            } catch (Exception | SilentIOException e) {
+                close(holder, e);
+            }
+        }
+        selectedKeys.clear();
+    }
+
     private void close(SocketHolder holder, Throwable t) {
         if (ClassyCord.DEBUG) {
             Log.w("Caught a Throwable, closing the connection", t);
@@ -562,13 +1395,27 @@ public class HandlerThread extends Thread {
                 reason = "A disconnect or timeout occurred in your connection";
             }
         }
-        // there is a chance it will mess up with another packet though
-        Utils.sendDisconnect(holder, reason);
-
-        Utils.close(holder.getSocket());
+        holder.markClosed();
         Utils.close(holder.getServerSocket());
+        if (relaying) {
+            sendDisconnectAndClose(holder, reason);
+        } else {
+            // there is a chance it will mess up with another packet though
+            Utils.sendDisconnect(holder, reason);
+            Utils.close(holder.getSocket());
+        }
         synchronized (this) {
             clientList.remove(holder);
+            queuedHolders.remove(holder);
+            if (holder.isActive()) {
+                holder.setActive(false);
+                activeHolders.remove(holder);
+                activeConnectionCount = activeHolders.size();
+            }
+            connectionCount = clientList.size();
+            holder.cancelTimeouts();
+            // a relay might be waiting for a server socket which will never appear
+            if (relaying) notifyAll();
 
             EventManager.getInstance().fireEvent(
                     new DisconnectEvent(this, holder, reason, t));
@@ -577,10 +1424,63 @@ public class HandlerThread extends Thread {
         Log.i(getAddressAndUsername(holder) + " disconnected");
     }
 
+    /*
+     * QueuedOutputStream#flush() blocks until the peer has received everything,
+     * so the Disconnect packet is flushed by a separate thread. The socket
+     * is closed once it's sent, or after DISCONNECT_FLUSH_TIMEOUT_MS if the
+     * Client doesn't read anything.
+     */
+    private synchronized void sendDisconnectAndClose(SocketHolder holder, String reason) {
+        Socket socket = holder.getSocket();
+        OutputStream outputStream = holder.getOutputStream();
+        try {
+            Utils.writeDisconnect(outputStream, reason);
+        } catch (IOException ignored) {
+            /* Ignoring this. */
+        }
+        timerWheel.schedule(DISCONNECT_FLUSH_TIMEOUT_MS, () -> Utils.close(socket));
+        Utils.startVirtualThread("disconnect (" + Utils.getAddress(socket) + ")", () -> {
+            try {
+                outputStream.flush();
+            } catch (IOException ignored) {
+                /* Ignoring this. */
+            } finally {
+                Utils.close(socket);
+            }
+        });
+    }
+
     List<SocketHolder> getClientList() {
         return clientList;
     }
 
+    // Should be used while holding the HandlerThread monitor
+    TimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    // The following two methods should be called while holding the HandlerThread monitor
+    long getForwardedBytes() {
+        return forwardedBytes;
+    }
+
+    // -1 if allocations aren't measured (see Utils.MEASURE_ALLOCATIONS)
+    long getAllocatedBytes() {
+        return (measureAllocations ? allocatedBytes : -1L);
+    }
+
+    long getHighWatermarkHitCount() {
+        return highWatermarkHitCount;
+    }
+
+    long getHardCapDisconnectCount() {
+        return hardCapDisconnectCount;
+    }
+
     public int getIndex() {
         return index;
     }
@@ -1,9 +1,8 @@
 package ru.deewend.classycord;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
@@ -16,6 +15,10 @@ public class Log {
 
     private static final DateFormat FORMAT =
             new SimpleDateFormat(ClassyCord.getInstance().getLogFormat());
+    // null if saveLogsOnDisk is false
+    private static final LogFileWriter FILE_WRITER = (ClassyCord.getInstance()
+            .shouldSaveLogsOnDisk() ? new LogFileWriter(ClassyCord.getInstance()
+            .getLogQueueCapacity(), ClassyCord.getInstance().getLogOverflowPolicy()) : null);
 
     public static String f(String fmt, Object... args) {
         return String.format(fmt, args);
@@ -61,34 +64,21 @@ public class Log {
                 throw new IllegalArgumentException("Unknown logLevel: " + logLevel);
         }
         PrintStream stream = (logLevel == LOG_LEVEL_INFO ? System.out : System.err);
-        if (!ClassyCord.getInstance().shouldSaveLogsOnDisk()) {
-            synchronized (Log.class) {
-                print(stream, prefix, message, t);
-            }
-
-            return;
-        }
-        try (FileOutputStream fileStream = getLogFileOutputStream()) {
-            PrintStream filePrintStream = new PrintStream(fileStream);
-
-            synchronized (Log.class) {
-                print(stream, prefix, message, t);
-                print(filePrintStream, prefix, message, t);
-            }
-        } catch (IOException e) {
-            System.err.println("Failed to print a log entry");
-            e.printStackTrace();
+        String entry;
+        long timestamp;
+        synchronized (Log.class) {
+            timestamp = System.currentTimeMillis();
+            entry = format(timestamp, prefix, message, t);
+            stream.print(entry);
         }
+        // the disk is touched by the writer thread only
+        if (FILE_WRITER != null) FILE_WRITER.write(entry, timestamp, logLevel == LOG_LEVEL_SEVERE);
     }
 
-    private static FileOutputStream getLogFileOutputStream() throws IOException {
-        File logsDir = new File("./logs/");
-        if (!logsDir.isDirectory()) {
-            if (!logsDir.mkdir()) {
-                throw new IOException("Could not create the ./logs/ directory");
-            }
-        }
+    // The name of the file the entries logged at this time go to, used by LogFileWriter
+    static String getLogFileName(long timestamp) {
         Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timestamp);
         int dayOfMonth = calendar.get(Calendar.DAY_OF_MONTH);
         int month = calendar.get(Calendar.MONTH) + 1;
         int year = calendar.get(Calendar.YEAR);
@@ -97,10 +87,7 @@ public class Log {
         nameFormat = nameFormat.replace("MM", adjust(month, 2));
         nameFormat = nameFormat.replace("yyyy", adjust(year, 4));
 
-        File currentLogFile = new File(logsDir, nameFormat);
-        currentLogFile.createNewFile();
-
-        return new FileOutputStream(currentLogFile, true);
+        return nameFormat;
     }
 
     private static String adjust(int dateElement, int count) {
@@ -127,12 +114,16 @@ public class Log {
         return String.valueOf(chars);
     }
 
-    private static void print(
-            PrintStream stream, String prefix, String message, Throwable t
-    ) {
-        stream.println(FORMAT.format(new Date()) + prefix + message);
+    // Should be called while holding the Log.class monitor, FORMAT isn't thread-safe
+    private static String format(long timestamp, String prefix, String message, Throwable t) {
+        StringWriter writer = new StringWriter();
+        PrintWriter printWriter = new PrintWriter(writer);
+        printWriter.println(FORMAT.format(new Date(timestamp)) + prefix + message);
         if (t != null) {
-            t.printStackTrace(stream);
+            t.printStackTrace(printWriter);
         }
+        printWriter.flush();
+
+        return writer.toString();
     }
 }
@@ -0,0 +1,193 @@
+package ru.deewend.classycord;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+
+/*
+ * Writes the log entries to ./logs/ on a dedicated thread. Log.l() only puts
+ * the formatted entry into a ring buffer, the writer takes everything that
+ * has accumulated and writes it at once, keeping the file open until the
+ * date changes (see logFileNameFormat). The file is picked by the time the
+ * entry was logged at, not by the time it is written, so entries logged
+ * right before midnight don't end up in the next day's file.
+ *
+ * If the buffer is full, the behavior depends on logOverflowPolicy: either
+ * the caller waits for some free space (BLOCK) or the entry is dropped and
+ * counted (DROP). SEVERE entries are never dropped.
+ */
+public class LogFileWriter {
+    private final String[] ring;
+    private final long[] timestamps;
+    private int head;
+    private int count;
+    private final ClassyCord.LogOverflowPolicy overflowPolicy;
+    private long droppedCount;
+    private boolean closed;
+    private final Thread thread;
+
+    // The following fields are used by the writer thread only (or by the
+    // thread which has closed the writer once the writer thread is done)
+    private final DateFormat format = new SimpleDateFormat(ClassyCord.getInstance().getLogFormat());
+    private final Charset charset = Charset.defaultCharset();
+    private final StringBuilder batch = new StringBuilder();
+    private String currentFileName;
+    // [dayStartsAt; dayEndsAt) is the day currentFileName belongs to
+    private long dayStartsAt;
+    private long dayEndsAt;
+    private FileChannel channel;
+
+    public LogFileWriter(int capacity, ClassyCord.LogOverflowPolicy overflowPolicy) {
+        this.ring = new String[capacity];
+        this.timestamps = new long[capacity];
+        this.overflowPolicy = overflowPolicy;
+
+        this.thread = new Thread(this::work, "log writer");
+        thread.setDaemon(true);
+        thread.start();
+        // everything logged before System.exit() should still reach the disk
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    // timestamp is the System.currentTimeMillis() the entry was formatted with
+    public void write(String entry, long timestamp, boolean severe) {
+        synchronized (this) {
+            if (!closed) {
+                while (count == ring.length) {
+                    if (overflowPolicy == ClassyCord.LogOverflowPolicy.DROP && !severe) {
+                        droppedCount++;
+
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+
+                        return;
+                    }
+                    if (closed) break;
+                }
+                if (!closed) {
+                    int index = (head + count) % ring.length;
+                    ring[index] = entry;
+                    timestamps[index] = timestamp;
+                    // the writer is waiting only if the buffer was empty
+                    if (count++ == 0) notifyAll();
+
+                    return;
+                }
+            }
+        }
+        // the shutdown hook has already flushed everything, we're on our own
+        synchronized (batch) {
+            append(entry, timestamp);
+            flushBatch();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            long dropped;
+            synchronized (this) {
+                while (count == 0 && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (count == 0) return;
+
+                dropped = droppedCount;
+                droppedCount = 0L;
+                synchronized (batch) {
+                    for (; count > 0; count--) {
+                        append(ring[head], timestamps[head]);
+                        ring[head] = null;
+                        head = (head + 1) % ring.length;
+                    }
+                }
+                // there might be someone waiting for a free slot
+                notifyAll();
+            }
+            synchronized (batch) {
+                if (dropped > 0L) {
+                    long now = System.currentTimeMillis();
+                    append(format.format(new Date(now)) + "[WARN] " + dropped +
+                            " log entries have been dropped, the disk " +
+                            "couldn't keep up" + System.lineSeparator(), now);
+                }
+                flushBatch();
+            }
+        }
+    }
+
+    /*
+     * Should be called while holding the batch monitor. If the entry belongs
+     * to another day, whatever has been batched so far goes to the previous
+     * file first.
+     */
+    private void append(String entry, long timestamp) {
+        if (timestamp < dayStartsAt || timestamp >= dayEndsAt) {
+            flushBatch();
+            Utils.close(channel);
+            channel = null;
+
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(timestamp);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            dayStartsAt = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            dayEndsAt = calendar.getTimeInMillis();
+            currentFileName = Log.getLogFileName(timestamp);
+        }
+        batch.append(entry);
+    }
+
+    // Should be called while holding the batch monitor
+    private void flushBatch() {
+        if (batch.length() == 0) return;
+
+        try {
+            if (channel == null) {
+                File logsDir = new File("./logs/");
+                if (!logsDir.isDirectory() && !logsDir.mkdir()) {
+                    throw new IOException("Could not create the ./logs/ directory");
+                }
+                channel = FileChannel.open(new File(logsDir, currentFileName).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            }
+            ByteBuffer buffer = charset.encode(batch.toString());
+            while (buffer.hasRemaining()) channel.write(buffer);
+        } catch (IOException e) {
+            System.err.println("Failed to write log entries to the disk");
+            e.printStackTrace();
+        } finally {
+            batch.setLength(0);
+        }
+    }
+
+    // Waits (for a while) until the writer thread has written everything
+    private void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join(5000L);
+        } catch (InterruptedException ignored) {
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ru.deewend.classycord;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Splits the data received from one side of the connection into whole
+ * packets using the length tables from Protocol. Incomplete packets are kept
+ * in the internal buffer until the rest of them arrives.
+ *
+ * If we meet a packetId we don't know, we can't find the next packet boundary
+ * anymore. In that case the framer gives up and passes through everything it
+ * has received, the same way the proxy worked before framing was introduced.
+ */
+public class PacketFramer {
+    public static final int INITIAL_CAPACITY = 4096;
+    public static final int MAX_READ_SIZE = 8192;
+
+    private final SocketHolder holder;
+    private final boolean serverbound;
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int position;
+    private int limit;
+    private boolean synced = true;
+
+    public PacketFramer(SocketHolder holder, boolean serverbound) {
+        this.holder = holder;
+        this.serverbound = serverbound;
+    }
+
+    /*
+     * Reads at most maxCount (but no more than MAX_READ_SIZE) bytes. Returns
+     * the number of bytes read or -1 if the end of the stream has been reached.
+     */
+    public int readFrom(InputStream stream, int maxCount) throws IOException {
+        int count = Math.min(maxCount, MAX_READ_SIZE);
+        ensureCapacity(count);
+        int read = stream.read(buffer, limit, count);
+        if (read > 0) limit += read;
+
+        return read;
+    }
+
+    /*
+     * Returns the length of the next packet (which starts at getPosition()),
+     * or 0 if it hasn't been fully received yet.
+     */
+    public int nextPacketLength() {
+        int available = limit - position;
+        if (available == 0) return 0;
+        if (!synced) return available;
+
+        int packetId = (buffer[position] & 0xFF);
+        int extensions = holder.getNegotiatedExtensions();
+        int length = (serverbound ?
+                Protocol.getServerboundPacketLength(packetId, extensions) :
+                Protocol.getClientboundPacketLength(packetId, extensions));
+        if (length == Protocol.UNKNOWN_LENGTH) {
+            synced = false;
+            Log.w("Unknown " + (serverbound ? "serverbound" : "clientbound") +
+                    " packetId " + packetId + " (" + HandlerThread.getAddressAndUsername(holder) +
+                    "), won't split the data of this connection into packets anymore");
+
+            return available;
+        }
+
+        return (available >= length ? length : 0);
+    }
+
+    public void skip(int length) {
+        position += length;
+        if (position == limit) {
+            position = 0;
+            limit = 0;
+        }
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public boolean isSynced() {
+        return synced;
+    }
+
+    private void ensureCapacity(int count) {
+        if (buffer.length - limit >= count) return;
+
+        int remaining = limit - position;
+        byte[] target = buffer;
+        if (buffer.length - remaining < count) {
+            target = new byte[Math.max(buffer.length * 2, remaining + count)];
+        }
+        System.arraycopy(buffer, position, target, 0, remaining);
+        buffer = target;
+        position = 0;
+        limit = remaining;
+    }
+}
@@ -0,0 +1,84 @@
+package ru.deewend.classycord;
+
+import java.util.Arrays;
+
+/*
+ * An ordered list of PacketTransformers for one direction of a SocketHolder.
+ * Transformers with lower priority values are run first, the ones having
+ * equal priorities are run in the order they were added. Transformers can
+ * be added or removed from any thread.
+ */
+public class PacketPipeline {
+    private static class Entry {
+        private final int priority;
+        private final PacketTransformer transformer;
+
+        private Entry(int priority, PacketTransformer transformer) {
+            this.priority = priority;
+            this.transformer = transformer;
+        }
+    }
+
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    // Replaced on every change, so process() doesn't need any locks
+    private volatile Entry[] entries = NO_ENTRIES;
+
+    public synchronized void addTransformer(int priority, PacketTransformer transformer) {
+        if (transformer == null) throw new NullPointerException();
+
+        Entry[] entries = this.entries;
+        int index = entries.length;
+        while (index > 0 && entries[index - 1].priority > priority) index--;
+
+        Entry[] newEntries = new Entry[entries.length + 1];
+        System.arraycopy(entries, 0, newEntries, 0, index);
+        newEntries[index] = new Entry(priority, transformer);
+        System.arraycopy(entries, index, newEntries, index + 1, entries.length - index);
+        this.entries = newEntries;
+    }
+
+    public synchronized boolean removeTransformer(PacketTransformer transformer) {
+        Entry[] entries = this.entries;
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].transformer != transformer) continue;
+
+            Entry[] newEntries = Arrays.copyOf(entries, entries.length - 1);
+            System.arraycopy(entries, i + 1, newEntries, i, entries.length - i - 1);
+            this.entries = newEntries;
+
+            return true;
+        }
+
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return entries.length == 0;
+    }
+
+    /*
+     * Returns the packet which should be handled instead of the given one,
+     * or null if it should be dropped. The given packet is never released
+     * here, if another buffer is returned, the caller has to release it.
+     */
+    PooledBuffer process(SocketHolder holder, PooledBuffer packet) throws Exception {
+        PooledBuffer current = packet;
+        for (Entry entry : entries) {
+            PooledBuffer result;
+            try {
+                result = entry.transformer.transform(holder, current);
+            } catch (Exception e) {
+                if (current != packet) current.release();
+
+                throw e;
+            }
+            if (result != current && current != packet) current.release();
+            if (result == null) return null;
+
+            current = result;
+        }
+
+        return current;
+    }
+}
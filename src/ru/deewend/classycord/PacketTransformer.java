@@ -0,0 +1,22 @@
+package ru.deewend.classycord;
+
+/*
+ * Rewrites packets of one direction of a SocketHolder (see PacketPipeline).
+ * Transformers are run by the HandlerThread for every whole packet before
+ * anything else happens to it, so event handlers, the proxy itself and the
+ * other side of the connection all see the transformed packet.
+ *
+ * transform() may return:
+ *  - the given buffer, possibly modified in place;
+ *  - another buffer (acquire it from holder.getThread().getBufferPool()),
+ *    the reference is handed over to the pipeline. Don't release the given
+ *    buffer, the pipeline takes care of it;
+ *  - null to drop the packet.
+ *
+ * Whatever is returned should still be a valid packet, other sides
+ * expect packets to have the length defined by the protocol.
+ */
+@FunctionalInterface
+public interface PacketTransformer {
+    PooledBuffer transform(SocketHolder holder, PooledBuffer packet) throws Exception;
+}
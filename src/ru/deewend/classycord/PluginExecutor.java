@@ -0,0 +1,135 @@
+package ru.deewend.classycord;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Runs blocking plugin work (file I/O, database queries and so on) on the
+ * worker threads of ClassyCord, so it doesn't stall the connections of a
+ * HandlerThread. Obtained with PluginManager#getExecutor(), one per plugin,
+ * which allows us to tell how much each plugin is using the workers.
+ *
+ * The number of workers and the length of their queue are limited (see
+ * workerThreadCount and workerQueueCapacity), the returned future fails with
+ * RejectedExecutionException if the queue is full.
+ */
+public class PluginExecutor {
+    private final String pluginName;
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    private final LongAdder completedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final LongAdder totalRunNanos = new LongAdder();
+
+    PluginExecutor(String pluginName) {
+        this.pluginName = pluginName;
+    }
+
+    /*
+     * If called from a HandlerThread, the future is completed by that
+     * HandlerThread (while holding its monitor), so the stages attached to
+     * it can safely touch its SocketHolders. Otherwise it's completed by
+     * the worker.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        Thread currentThread = Thread.currentThread();
+
+        return submit(task, (currentThread instanceof HandlerThread ?
+                (HandlerThread) currentThread : null));
+    }
+
+    // Same as above, but the future is completed by the specified HandlerThread (if not null)
+    public <T> CompletableFuture<T> submit(Callable<T> task, HandlerThread callbackThread) {
+        if (task == null) throw new NullPointerException("task");
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long submitTimestamp = System.nanoTime();
+        queuedCount.incrementAndGet();
+        try {
+            ClassyCord.getInstance().getWorkerExecutor().execute(() -> {
+                queuedCount.decrementAndGet();
+                long startTimestamp = System.nanoTime();
+                totalWaitNanos.add(startTimestamp - submitTimestamp);
+
+                T result = null;
+                Throwable failure = null;
+                try {
+                    result = task.call();
+                } catch (Throwable t) {
+                    failure = t;
+                    failedCount.increment();
+                }
+                totalRunNanos.add(System.nanoTime() - startTimestamp);
+                completedCount.increment();
+
+                complete(future, result, failure, callbackThread);
+            });
+        } catch (RejectedExecutionException e) {
+            queuedCount.decrementAndGet();
+            rejectedCount.increment();
+
+            complete(future, null, e, callbackThread);
+        }
+
+        return future;
+    }
+
+    private static <T> void complete(
+            CompletableFuture<T> future, T result, Throwable failure, HandlerThread callbackThread
+    ) {
+        Runnable completion = () -> {
+            if (failure != null) {
+                future.completeExceptionally(failure);
+            } else {
+                future.complete(result);
+            }
+        };
+        if (callbackThread != null) {
+            callbackThread.addTask(completion);
+        } else {
+            completion.run();
+        }
+    }
+
+    public String getPluginName() {
+        return pluginName;
+    }
+
+    // Tasks waiting for a free worker
+    public int getQueueDepth() {
+        return queuedCount.get();
+    }
+
+    // Including the failed ones
+    public long getCompletedCount() {
+        return completedCount.sum();
+    }
+
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    // How long the tasks have been waiting for a worker on average
+    public double getAverageWaitMillis() {
+        return averageMillis(totalWaitNanos.sum());
+    }
+
+    public double getAverageRunMillis() {
+        return averageMillis(totalRunNanos.sum());
+    }
+
+    private double averageMillis(long totalNanos) {
+        long count = completedCount.sum();
+
+        return (count == 0L ? 0.0D : (double) totalNanos / count / TimeUnit.MILLISECONDS.toNanos(1L));
+    }
+}
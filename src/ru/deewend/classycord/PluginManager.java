@@ -7,6 +7,8 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -15,7 +17,10 @@ public class PluginManager {
     private static final int MAX_ATTEMPTS = Integer
             .parseInt(System.getProperty("ccMaxPluginAttempts", "100"));
 
-    private final Map<String, Plugin> pluginMap = new HashMap<>();
+    // Both maps are replaced as a whole when a plugin is loaded, so any thread may read them
+    private volatile Map<String, Plugin> pluginMap = Collections.emptyMap();
+    private volatile Map<Plugin, String> pluginNames = Collections.emptyMap();
+    private final ConcurrentMap<Plugin, PluginExecutor> executorMap = new ConcurrentHashMap<>();
 
     static {
         if (MAX_ATTEMPTS < 2) {
@@ -193,7 +198,7 @@ public class PluginManager {
                             System.exit(-1);
                         }
 
-                        pluginMap.put(name, plugin);
+                        addPlugin(name, plugin);
                     }
                 }
                 if (attempt >= 1 && fullyLoaded) break;
@@ -215,10 +220,34 @@ public class PluginManager {
         }
     }
 
+    private void addPlugin(String name, Plugin plugin) {
+        Map<String, Plugin> newPluginMap = new HashMap<>(pluginMap);
+        newPluginMap.put(name, plugin);
+        Map<Plugin, String> newPluginNames = new IdentityHashMap<>(pluginNames);
+        newPluginNames.put(plugin, name);
+
+        pluginMap = Collections.unmodifiableMap(newPluginMap);
+        pluginNames = Collections.unmodifiableMap(newPluginNames);
+    }
+
     public Plugin getPlugin(String name) {
         return pluginMap.get(name);
     }
 
+    // See PluginExecutor
+    public PluginExecutor getExecutor(Plugin plugin) {
+        return executorMap.computeIfAbsent(plugin, key -> {
+            String name = pluginNames.get(key);
+
+            // load() is called before the plugin is put into the map
+            return new PluginExecutor(name != null ? name : key.getClass().getName());
+        });
+    }
+
+    Collection<PluginExecutor> getExecutors() {
+        return executorMap.values();
+    }
+
     void enablePlugins() {
         call("enable");
     }
@@ -0,0 +1,68 @@
+package ru.deewend.classycord;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A reference counted byte array which belongs to a BufferPool. The buffer
+ * is given back to the pool when release() has been called once for the
+ * initial reference and once for each retain(). Don't touch the array
+ * after you've released your reference.
+ */
+public class PooledBuffer {
+    private final BufferPool pool;
+    private final byte[] array;
+    private final AtomicInteger refCount = new AtomicInteger();
+    private int length;
+
+    PooledBuffer(BufferPool pool, byte[] array) {
+        this.pool = pool;
+        this.array = array;
+    }
+
+    // Wraps an existing array, such buffers are never recycled
+    public static PooledBuffer wrap(byte[] array) {
+        PooledBuffer buffer = new PooledBuffer(null, array);
+        buffer.reset(array.length);
+
+        return buffer;
+    }
+
+    void reset(int length) {
+        this.length = length;
+        refCount.set(1);
+    }
+
+    public byte[] array() {
+        return array;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public PooledBuffer retain() {
+        if (refCount.getAndIncrement() <= 0) {
+            refCount.decrementAndGet();
+
+            throw new IllegalStateException("The buffer has already been released");
+        }
+
+        return this;
+    }
+
+    public void release() {
+        int remaining = refCount.decrementAndGet();
+        if (remaining == 0) {
+            if (pool != null) pool.recycle(this);
+        } else if (remaining < 0) {
+            refCount.incrementAndGet();
+
+            throw new IllegalStateException("The buffer has already been released");
+        }
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(array, length);
+    }
+}
@@ -0,0 +1,181 @@
+package ru.deewend.classycord;
+
+/*
+ * Packet lengths (including packetIds) of the Classic protocol
+ * and its CPE extensions. Some extensions change lengths of existing
+ * packets, such extensions are represented with flags. Their bitwise AND
+ * for the Client and the Server gives the negotiated set.
+ */
+public class Protocol {
+    public static final int UNKNOWN_LENGTH = -1;
+
+    public static final int EXT_ENTITY_POSITIONS = 1;
+    public static final int EXTENDED_BLOCKS = 1 << 1;
+    public static final int FAST_MAP = 1 << 2;
+    public static final int EXTENDED_TEXTURES = 1 << 3;
+    public static final int ENV_MAP_APPEARANCE_V2 = 1 << 4;
+    public static final int BLOCK_DEFINITIONS_EXT_V2 = 1 << 5;
+    public static final int CUSTOM_MODELS_V2 = 1 << 6;
+
+    private static final int[] SERVERBOUND_LENGTHS = new int[256];
+    private static final int[] CLIENTBOUND_LENGTHS = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            SERVERBOUND_LENGTHS[i] = UNKNOWN_LENGTH;
+            CLIENTBOUND_LENGTHS[i] = UNKNOWN_LENGTH;
+        }
+
+        // Client -> Server
+        SERVERBOUND_LENGTHS[0x00] = 131; // PlayerIdentification
+        SERVERBOUND_LENGTHS[0x01] = 1; // Ping
+        SERVERBOUND_LENGTHS[0x05] = 9; // SetBlock
+        SERVERBOUND_LENGTHS[0x08] = 10; // PositionAndOrientation
+        SERVERBOUND_LENGTHS[0x0d] = 66; // Message
+        SERVERBOUND_LENGTHS[0x10] = 67; // ExtInfo
+        SERVERBOUND_LENGTHS[0x11] = 69; // ExtEntry
+        SERVERBOUND_LENGTHS[0x13] = 2; // CustomBlockSupportLevel
+        SERVERBOUND_LENGTHS[0x22] = 15; // PlayerClicked
+        SERVERBOUND_LENGTHS[0x2b] = 4; // TwoWayPing
+        SERVERBOUND_LENGTHS[0x35] = 66; // PluginMessage
+        SERVERBOUND_LENGTHS[0x39] = 5; // NotifyAction
+        SERVERBOUND_LENGTHS[0x3a] = 9; // NotifyPositionAction
+
+        // Server -> Client
+        CLIENTBOUND_LENGTHS[0x00] = 131; // ServerIdentification
+        CLIENTBOUND_LENGTHS[0x01] = 1; // Ping
+        CLIENTBOUND_LENGTHS[0x02] = 1; // LevelInitialize
+        CLIENTBOUND_LENGTHS[0x03] = 1028; // LevelDataChunk
+        CLIENTBOUND_LENGTHS[0x04] = 7; // LevelFinalize
+        CLIENTBOUND_LENGTHS[0x06] = 8; // SetBlock
+        CLIENTBOUND_LENGTHS[0x07] = 74; // SpawnPlayer
+        CLIENTBOUND_LENGTHS[0x08] = 10; // SetPositionAndOrientation
+        CLIENTBOUND_LENGTHS[0x09] = 7; // PositionAndOrientationUpdate
+        CLIENTBOUND_LENGTHS[0x0a] = 5; // PositionUpdate
+        CLIENTBOUND_LENGTHS[0x0b] = 4; // OrientationUpdate
+        CLIENTBOUND_LENGTHS[0x0c] = 2; // DespawnPlayer
+        CLIENTBOUND_LENGTHS[0x0d] = 66; // Message
+        CLIENTBOUND_LENGTHS[0x0e] = 65; // DisconnectPlayer
+        CLIENTBOUND_LENGTHS[0x0f] = 2; // UpdateUserType
+        CLIENTBOUND_LENGTHS[0x10] = 67; // ExtInfo
+        CLIENTBOUND_LENGTHS[0x11] = 69; // ExtEntry
+        CLIENTBOUND_LENGTHS[0x12] = 3; // SetClickDistance
+        CLIENTBOUND_LENGTHS[0x13] = 2; // CustomBlockSupportLevel
+        CLIENTBOUND_LENGTHS[0x14] = 3; // HoldThis
+        CLIENTBOUND_LENGTHS[0x15] = 134; // SetTextHotKey
+        CLIENTBOUND_LENGTHS[0x16] = 196; // ExtAddPlayerName
+        CLIENTBOUND_LENGTHS[0x17] = 130; // ExtAddEntity
+        CLIENTBOUND_LENGTHS[0x18] = 3; // ExtRemovePlayerName
+        CLIENTBOUND_LENGTHS[0x19] = 8; // EnvSetColor
+        CLIENTBOUND_LENGTHS[0x1a] = 86; // MakeSelection
+        CLIENTBOUND_LENGTHS[0x1b] = 2; // RemoveSelection
+        CLIENTBOUND_LENGTHS[0x1c] = 4; // SetBlockPermission
+        CLIENTBOUND_LENGTHS[0x1d] = 66; // ChangeModel
+        CLIENTBOUND_LENGTHS[0x1e] = 69; // EnvSetMapAppearance
+        CLIENTBOUND_LENGTHS[0x1f] = 2; // EnvSetWeatherType
+        CLIENTBOUND_LENGTHS[0x20] = 8; // HackControl
+        CLIENTBOUND_LENGTHS[0x21] = 138; // ExtAddEntity2
+        CLIENTBOUND_LENGTHS[0x23] = 80; // DefineBlock
+        CLIENTBOUND_LENGTHS[0x24] = 2; // RemoveBlockDefinition
+        CLIENTBOUND_LENGTHS[0x25] = 85; // DefineBlockExt
+        CLIENTBOUND_LENGTHS[0x26] = 1282; // BulkBlockUpdate
+        CLIENTBOUND_LENGTHS[0x27] = 6; // SetTextColor
+        CLIENTBOUND_LENGTHS[0x28] = 65; // SetMapEnvUrl
+        CLIENTBOUND_LENGTHS[0x29] = 6; // SetMapEnvProperty
+        CLIENTBOUND_LENGTHS[0x2a] = 7; // SetEntityProperty
+        CLIENTBOUND_LENGTHS[0x2b] = 4; // TwoWayPing
+        CLIENTBOUND_LENGTHS[0x2c] = 3; // SetInventoryOrder
+        CLIENTBOUND_LENGTHS[0x2d] = 3; // SetHotbar
+        CLIENTBOUND_LENGTHS[0x2e] = 9; // SetSpawnpoint
+        CLIENTBOUND_LENGTHS[0x2f] = 16; // VelocityControl
+        CLIENTBOUND_LENGTHS[0x30] = 36; // DefineEffect
+        CLIENTBOUND_LENGTHS[0x31] = 26; // SpawnEffect
+        CLIENTBOUND_LENGTHS[0x32] = 116; // DefineModel
+        CLIENTBOUND_LENGTHS[0x33] = 104; // DefineModelPart
+        CLIENTBOUND_LENGTHS[0x34] = 2; // UndefineModel
+        CLIENTBOUND_LENGTHS[0x35] = 66; // PluginMessage
+        CLIENTBOUND_LENGTHS[0x36] = 11; // EntityTeleportExt
+        CLIENTBOUND_LENGTHS[0x37] = 3; // LightingMode
+        CLIENTBOUND_LENGTHS[0x38] = 10; // CinematicGui
+        CLIENTBOUND_LENGTHS[0x3b] = 3; // ToggleBlockList
+    }
+
+    private Protocol() {
+    }
+
+    public static int getServerboundPacketLength(int packetId, int extensions) {
+        int length = SERVERBOUND_LENGTHS[packetId];
+        switch (packetId) {
+            case 0x05: {
+                if ((extensions & EXTENDED_BLOCKS) != 0) length += 1;
+
+                break;
+            }
+            case 0x08: {
+                if ((extensions & EXTENDED_BLOCKS) != 0) length += 1;
+                if ((extensions & EXT_ENTITY_POSITIONS) != 0) length += 6;
+
+                break;
+            }
+        }
+
+        return length;
+    }
+
+    public static int getClientboundPacketLength(int packetId, int extensions) {
+        int length = CLIENTBOUND_LENGTHS[packetId];
+        if (extensions == 0 || length == UNKNOWN_LENGTH) return length;
+
+        boolean extendedBlocks = ((extensions & EXTENDED_BLOCKS) != 0);
+        boolean extEntityPositions = ((extensions & EXT_ENTITY_POSITIONS) != 0);
+        switch (packetId) {
+            case 0x02: return length + ((extensions & FAST_MAP) != 0 ? 4 : 0);
+            case 0x07:
+            case 0x08:
+            case 0x21:
+            case 0x2e:
+            case 0x36: return length + (extEntityPositions ? 6 : 0);
+            case 0x06:
+            case 0x14:
+            case 0x1c:
+            case 0x24:
+            case 0x2d:
+            case 0x3b: return length + (extendedBlocks ? 1 : 0);
+            case 0x2c: return length + (extendedBlocks ? 2 : 0);
+            case 0x26: return length + (extendedBlocks ? 256 / 4 : 0);
+            case 0x1e: return length + ((extensions & ENV_MAP_APPEARANCE_V2) != 0 ? 4 : 0);
+            case 0x33: return ((extensions & CUSTOM_MODELS_V2) != 0 ? 167 : length);
+            case 0x23: {
+                if (extendedBlocks) length += 1;
+                if ((extensions & EXTENDED_TEXTURES) != 0) length += 3;
+
+                return length;
+            }
+            case 0x25: {
+                // version 2 sends 6 textures instead of 3
+                boolean v2 = ((extensions & BLOCK_DEFINITIONS_EXT_V2) != 0);
+                if (extendedBlocks) length += 1;
+                if ((extensions & EXTENDED_TEXTURES) != 0) length += (v2 ? 6 : 3);
+                if (v2) length += 3;
+
+                return length;
+            }
+            default: return length;
+        }
+    }
+
+    // Returns 0 if the extension doesn't affect packet lengths
+    public static int getExtensionFlag(String extName, int version) {
+        if (extName.equalsIgnoreCase("ExtEntityPositions")) return EXT_ENTITY_POSITIONS;
+        if (extName.equalsIgnoreCase("ExtendedBlocks")) return EXTENDED_BLOCKS;
+        if (extName.equalsIgnoreCase("FastMap")) return FAST_MAP;
+        if (extName.equalsIgnoreCase("ExtendedTextures")) return EXTENDED_TEXTURES;
+        if (version >= 2) {
+            if (extName.equalsIgnoreCase("EnvMapAppearance")) return ENV_MAP_APPEARANCE_V2;
+            if (extName.equalsIgnoreCase("BlockDefinitionsExt")) return BLOCK_DEFINITIONS_EXT_V2;
+            if (extName.equalsIgnoreCase("CustomModels")) return CUSTOM_MODELS_V2;
+        }
+
+        return 0;
+    }
+}
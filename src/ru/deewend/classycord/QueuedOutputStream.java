@@ -0,0 +1,96 @@
+package ru.deewend.classycord;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Used by the relay I/O engine. Writes never block, the data is queued and
+ * sent by flush() which blocks until everything has been written to the
+ * socket, so relay threads call it outside of the HandlerThread monitor.
+ * If another thread is already flushing, flush() returns immediately, that
+ * thread will send the newly queued data as well. The queue is kept short by
+ * the relay threads, which stop reading once it's above the high watermark.
+ */
+public class QueuedOutputStream extends OutputStream {
+    public static final int INITIAL_CAPACITY = 8192;
+
+    private final OutputStream out;
+    private byte[] queue = new byte[INITIAL_CAPACITY];
+    private int count;
+    private byte[] sending = new byte[INITIAL_CAPACITY];
+    private int sendingCount;
+    private boolean flushing;
+    private long flushStartTimestamp;
+
+    public QueuedOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        ensureCapacity(1);
+        queue[count++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, queue, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        while (true) {
+            byte[] chunk;
+            int length;
+            synchronized (this) {
+                if (flushing || count == 0) return;
+
+                flushing = true;
+                flushStartTimestamp = System.currentTimeMillis();
+                chunk = queue;
+                length = count;
+                queue = sending;
+                count = 0;
+                sending = chunk;
+                sendingCount = length;
+            }
+            try {
+                out.write(chunk, 0, length);
+                out.flush();
+            } finally {
+                synchronized (this) {
+                    flushing = false;
+                    flushStartTimestamp = 0L;
+                    sendingCount = 0;
+                }
+            }
+        }
+    }
+
+    // Including the bytes which are being sent right now
+    public synchronized int getQueuedByteCount() {
+        return count + sendingCount;
+    }
+
+    // Returns 0 if nobody is flushing at the moment
+    public synchronized long getFlushStartTimestamp() {
+        return flushStartTimestamp;
+    }
+
+    private void ensureCapacity(int length) {
+        if (queue.length - count >= length) return;
+
+        int capacity = queue.length;
+        while (capacity - count < length) capacity *= 2;
+        byte[] larger = new byte[capacity];
+        System.arraycopy(queue, 0, larger, 0, count);
+        queue = larger;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
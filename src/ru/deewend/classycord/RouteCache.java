@@ -0,0 +1,111 @@
+package ru.deewend.classycord;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Remembers which GameServer a player was sent to when they had to press
+ * "Reconnect", so the next login is routed there regardless of which
+ * HandlerThread accepts it.
+ *
+ * Every route lives for the same amount of time, so the order routes were
+ * added in is also the order they expire in. Expired routes are dropped from
+ * the head of that queue whenever a route is added, no full scans needed.
+ * The same goes for routes which were taken or replaced since, so only the
+ * live ones are evicted (oldest first) when the cache is full.
+ */
+public class RouteCache {
+    private static class Route {
+        private final String username;
+        private final GameServer gameServer;
+        private final long expiresAt; // System.nanoTime()
+
+        private Route(String username, GameServer gameServer, long expiresAt) {
+            this.username = username;
+            this.gameServer = gameServer;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    // Oldest route first, may contain routes which were already taken or replaced
+    private final Queue<Route> deadlines = new ArrayDeque<>();
+    private final long timeToLiveNanos;
+    private final int maxSize;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    public RouteCache(long timeToLiveMillis, int maxSize) {
+        this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+        this.maxSize = maxSize;
+    }
+
+    public void put(String username, GameServer gameServer) {
+        long now = System.nanoTime();
+        Route route = new Route(username, gameServer, now + timeToLiveNanos);
+
+        synchronized (deadlines) {
+            Route head;
+            while ((head = deadlines.peek()) != null) {
+                if (head.expiresAt - now <= 0L) {
+                    if (routes.remove(head.username, head)) expiredCount.incrementAndGet();
+                } else if (routes.get(head.username) == head) {
+                    break;
+                }
+                deadlines.poll();
+            }
+            // a player relogging over and over shouldn't grow the queue until their routes expire
+            if (deadlines.size() > 2 * maxSize) {
+                deadlines.removeIf(deadline -> routes.get(deadline.username) != deadline);
+            }
+            // replacing a route doesn't make the cache any larger
+            if (!routes.containsKey(username)) {
+                while (routes.size() >= maxSize && (head = deadlines.poll()) != null) {
+                    if (routes.remove(head.username, head)) evictedCount.incrementAndGet();
+                }
+            }
+            deadlines.add(route);
+            routes.put(username, route);
+        }
+    }
+
+    // Returns and forgets the route of this player, null if there's none
+    public GameServer take(String username) {
+        Route route = routes.remove(username);
+        if (route == null || route.expiresAt - System.nanoTime() <= 0L) {
+            missCount.incrementAndGet();
+
+            return null;
+        }
+        hitCount.incrementAndGet();
+
+        return route.gameServer;
+    }
+
+    public int size() {
+        return routes.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    // Routes which had to be forgotten early because the cache was full
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+}
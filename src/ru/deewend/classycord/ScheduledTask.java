@@ -0,0 +1,117 @@
+package ru.deewend.classycord;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Returned by HandlerThread#schedule(), HandlerThread#scheduleAtFixedRate()
+ * and the same methods of Scheduler. The task is run by its HandlerThread
+ * while holding the monitor, just like the tasks added with addTask().
+ * Delays are rounded up to whole ticks.
+ */
+public class ScheduledTask {
+    private final Runnable task;
+    private final long periodMillis; // 0 if the task isn't repeating
+    private long nextRunTimestamp;
+    private volatile HandlerThread thread;
+    private volatile boolean cancelled;
+    private volatile boolean done;
+    // The following field is guarded by the monitor of the HandlerThread
+    private TimerWheel.Timeout timeout;
+
+    ScheduledTask(Runnable task, long delayMillis, long periodMillis) {
+        if (task == null) throw new NullPointerException("task");
+        if (periodMillis < 0L) throw new IllegalArgumentException("periodMillis should be positive");
+
+        this.task = task;
+        this.periodMillis = periodMillis;
+        this.nextRunTimestamp = System.currentTimeMillis() + Math.max(delayMillis, 0L);
+    }
+
+    /*
+     * Used by scheduleAtFixedRate(). A period shorter than a millisecond is
+     * rounded up instead of becoming 0, which would make the task a one-shot.
+     */
+    static long toPeriodMillis(long period, TimeUnit unit) {
+        if (period <= 0L) throw new IllegalArgumentException("period should be positive");
+
+        return Math.max(unit.toMillis(period), 1L);
+    }
+
+    // Called by the HandlerThread while holding its monitor
+    void start(HandlerThread thread) {
+        this.thread = thread;
+        if (cancelled) {
+            done = true;
+
+            return;
+        }
+        thread.scheduledTaskStarted();
+        scheduleNextRun();
+    }
+
+    private void scheduleNextRun() {
+        timeout = thread.getTimerWheel().schedule(
+                nextRunTimestamp - System.currentTimeMillis(), this::run);
+    }
+
+    private void run() {
+        if (cancelled) return;
+
+        try {
+            task.run();
+        } catch (Throwable t) {
+            Log.s("A scheduled task has failed, it won't be run again", t);
+            finish();
+
+            return;
+        }
+        if (periodMillis == 0L || cancelled) {
+            finish();
+
+            return;
+        }
+        // the rate is fixed, the time the task took doesn't shift the next run
+        nextRunTimestamp += periodMillis;
+        scheduleNextRun();
+    }
+
+    private void finish() {
+        if (done) return;
+
+        done = true;
+        if (timeout != null) timeout.cancel();
+        thread.scheduledTaskFinished();
+    }
+
+    /*
+     * May be called from any thread. If the task is being run right now, it
+     * won't be interrupted, but a repeating task won't be run again.
+     */
+    public void cancel() {
+        if (cancelled) return;
+
+        cancelled = true;
+        HandlerThread thread = this.thread;
+        if (thread == null) return; // it's going to notice that once it's started
+
+        if (Thread.holdsLock(thread)) {
+            finish();
+        } else {
+            thread.addTask(this::finish);
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // True once the task won't be run anymore
+    public boolean isDone() {
+        return done;
+    }
+
+    // Null if the task hasn't been handed to a HandlerThread yet
+    public HandlerThread getThread() {
+        return thread;
+    }
+}
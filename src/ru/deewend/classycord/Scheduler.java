@@ -0,0 +1,51 @@
+package ru.deewend.classycord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Runs tasks on the least loaded HandlerThread, for plugins which don't care
+ * which thread does the job. Tasks scheduled before the first HandlerThread
+ * has started (e.g. from Plugin#enable()) are handed to it once it does.
+ */
+public class Scheduler {
+    private final List<HandlerThread> handlerThreads = new ArrayList<>();
+    private final List<ScheduledTask> pendingTasks = new ArrayList<>();
+
+    public ScheduledTask schedule(Runnable task, long delay, TimeUnit unit) {
+        return submit(new ScheduledTask(task, unit.toMillis(delay), 0L));
+    }
+
+    public ScheduledTask scheduleAtFixedRate(
+            Runnable task, long initialDelay, long period, TimeUnit unit
+    ) {
+        return submit(new ScheduledTask(task,
+                unit.toMillis(initialDelay), ScheduledTask.toPeriodMillis(period, unit)));
+    }
+
+    private synchronized ScheduledTask submit(ScheduledTask scheduledTask) {
+        if (handlerThreads.isEmpty()) {
+            pendingTasks.add(scheduledTask);
+
+            return scheduledTask;
+        }
+        HandlerThread leastLoaded = handlerThreads.get(0);
+        for (int i = 1; i < handlerThreads.size(); i++) {
+            HandlerThread thread = handlerThreads.get(i);
+            if (thread.getLoad() < leastLoaded.getLoad()) leastLoaded = thread;
+        }
+        leastLoaded.startScheduledTask(scheduledTask);
+
+        return scheduledTask;
+    }
+
+    // Called by ClassyCord once a HandlerThread has been started
+    synchronized void addHandlerThread(HandlerThread thread) {
+        handlerThreads.add(thread);
+        for (ScheduledTask scheduledTask : pendingTasks) {
+            thread.startScheduledTask(scheduledTask);
+        }
+        pendingTasks.clear();
+    }
+}
@@ -1,45 +1,52 @@
 package ru.deewend.classycord;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
 public class SocketHolder {
     public enum State {
-        WAITING_FOR_PLAYER_IDENTIFICATION(
-                Utils.SIDE_IDENTIFICATION_PACKET, (1 + 1 + 64 + 64 + 1)),
+        WAITING_FOR_PLAYER_IDENTIFICATION(Utils.SIDE_IDENTIFICATION_PACKET),
+        // We're waiting for a connection to the GameServer to be established
+        CONNECTING_TO_SERVER(ANY_PACKET_ID),
         /*
-         * We have to separate a single state between two parts, because
-         * theoretically we can just receive a Disconnect packet (65 bytes)
-         * instead of ExtInfo (67 bytes). If we'll be waiting for exactly 67 bytes,
-         * this may lead to a freeze.
-         *
-         * Thus, we'll be waiting for at least 65 bytes at first time.
+         * The first packet from the GameServer is either ExtInfo, or
+         * ServerIdentification (non-CPE server), or a Disconnect packet.
          */
-        WAITING_FOR_SERVER_EXT_INFO_PT_1(ANY_PACKET_ID, ANY_PACKET_LENGTH),
-        WAITING_FOR_SERVER_EXT_INFO_PT_2(ANY_PACKET_ID, ANY_PACKET_LENGTH),
-        WAITING_FOR_ALL_SERVER_EXT_ENTRIES(ANY_PACKET_ID, ANY_PACKET_LENGTH),
-        CONNECTED(ANY_PACKET_ID, ANY_PACKET_LENGTH);
+        WAITING_FOR_SERVER_EXT_INFO(ANY_PACKET_ID),
+        /*
+         * Never entered anymore, ExtInfo is received as a whole packet.
+         * setState() treats both of them as WAITING_FOR_SERVER_EXT_INFO.
+         */
+        @Deprecated
+        WAITING_FOR_SERVER_EXT_INFO_PT_1(ANY_PACKET_ID),
+        @Deprecated
+        WAITING_FOR_SERVER_EXT_INFO_PT_2(ANY_PACKET_ID),
+        WAITING_FOR_ALL_SERVER_EXT_ENTRIES(ANY_PACKET_ID),
+        CONNECTED(ANY_PACKET_ID);
 
         private final int expectedClientPacketId;
-        private final int expectedClientPacketLength;
-
-        State(int expectedClientPacketId, int expectedClientPacketLength) {
-            if (expectedClientPacketLength < 1) {
-                throw new IllegalArgumentException("Too low expectedClientPacketLength");
-            }
 
+        State(int expectedClientPacketId) {
             this.expectedClientPacketId = expectedClientPacketId;
-            this.expectedClientPacketLength = expectedClientPacketLength;
         }
 
+        // Packets are split by PacketFramer now, see Protocol for their lengths
+        @Deprecated
         public int getExpectedClientPacketLength() {
-            return expectedClientPacketLength;
+            if (expectedClientPacketId == ANY_PACKET_ID) return ANY_PACKET_LENGTH;
+
+            return Protocol.getServerboundPacketLength(expectedClientPacketId, 0);
         }
 
         public boolean checkClientPacketId(DataInputStream stream) throws IOException {
@@ -52,6 +59,7 @@ public class SocketHolder {
     }
 
     public static final int ANY_PACKET_ID = -1;
+    @Deprecated
     public static final int ANY_PACKET_LENGTH = 1;
 
     private final HandlerThread thread;
@@ -61,25 +69,46 @@ public class SocketHolder {
     private final InputStream inputStream;
     private final OutputStream outputStream;
     private final AnalyzingStream analyzingStream;
+    private final PacketFramer clientFramer;
+    // Proxy -> Client queue, reading from the GameServer is paused when it's too long
+    private final Backpressure clientboundBackpressure = new Backpressure();
+    private final PacketPipeline serverboundPipeline = new PacketPipeline();
+    private final PacketPipeline clientboundPipeline = new PacketPipeline();
     private long lastReadTimestamp;
 
     private GameServer gameServer;
     private Socket serverSocket;
     private InputStream serverInputStream;
     private OutputStream serverOutputStream;
+    private PacketFramer serverFramer;
+    // Proxy -> GameServer queue, reading from the Client is paused when it's too long
+    private final Backpressure serverboundBackpressure = new Backpressure();
     private long lastServerReadTimestamp;
 
     private final Map<Object, Object> metadata = new HashMap<>();
     private State state = State.WAITING_FOR_PLAYER_IDENTIFICATION;
     private boolean clientSupportsCPE;
     private short expectedServerExtEntryCount;
+    private final List<Object[]> receivedServerExtEntries = new ArrayList<>();
     private Object[][] serverCPEArrayConnectionWasInitializedWith;
+    private int clientExtensions;
+    private int serverExtensions;
     private byte[] clientCPEHandshake;
     private String username;
     private Boolean CPEConnection;
-    private int ticksNoNewDataFromServer;
     private GameServer pendingGameServer;
     private boolean connectingForTheFirstTime = true;
+    private boolean hasServerRelay;
+    private long connectAttempt;
+    private ByteArrayOutputStream pendingServerboundData;
+    // Scheduled on the TimerWheel of the HandlerThread
+    private TimerWheel.Timeout readTimeout;
+    private TimerWheel.Timeout handshakeTimeout;
+    private TimerWheel.Timeout pendingSwitchTimeout;
+    private boolean closed;
+    // Whether the classic engine is polling this connection between ticks, guarded by the HandlerThread monitor
+    private boolean active;
+    private long activeUntil;
 
     public SocketHolder(HandlerThread thread, Socket socket) throws IOException {
         this.creationTimestamp = System.currentTimeMillis();
@@ -87,12 +116,28 @@ public class SocketHolder {
 
         // Client --> Proxy
         this.socket = socket;
-        this.inputStream = socket.getInputStream();
-        this.outputStream = socket.getOutputStream();
+        SocketChannel channel = socket.getChannel();
+        if (thread.usesChannels() && channel != null) {
+            channel.configureBlocking(false);
+            ChannelOutputStream channelOutputStream = new ChannelOutputStream(channel);
+            this.inputStream = new ChannelInputStream(channel);
+            this.outputStream = channelOutputStream;
+            if (thread.usesSelector()) thread.registerChannel(channel, this, channelOutputStream);
+        } else {
+            this.inputStream = socket.getInputStream();
+            this.outputStream = new QueuedOutputStream(socket.getOutputStream());
+        }
         this.lastReadTimestamp = creationTimestamp;
         this.analyzingStream = new AnalyzingStream(this);
+        this.clientFramer = new PacketFramer(this, true);
     }
 
+    /*
+     * Connecting is done asynchronously, so a slow or dead GameServer won't
+     * freeze the HandlerThread. The state is set to CONNECTING_TO_SERVER until
+     * the connection is established (or has failed) and completed on a later
+     * tick, GameServerSetEvent is fired at that moment.
+     */
     public void setGameServer(GameServer gameServer) throws IOException {
         Objects.requireNonNull(gameServer);
 
@@ -106,12 +151,68 @@ public class SocketHolder {
 
             this.gameServer = gameServer;
             Utils.close(serverSocket);
+            serverSocket = null;
+            serverInputStream = null;
+            serverOutputStream = null;
+            // whatever is left from the previous GameServer is dropped
+            serverFramer = new PacketFramer(this, false);
+            lastServerReadTimestamp = System.currentTimeMillis();
+            setState(State.CONNECTING_TO_SERVER);
 
-            // Proxy --> Game Server
-            serverSocket = new Socket(gameServer.getAddress(), gameServer.getPort());
+            long attempt = ++connectAttempt;
+            ClassyCord.getInstance().getConnectExecutor().execute(() -> connect(attempt));
+        }
+    }
+
+    // Runs on a connector thread
+    private void connect(long attempt) {
+        GameServer gameServer;
+        synchronized (thread) {
+            if (attempt != connectAttempt) return;
+
+            gameServer = this.gameServer;
+        }
+
+        // Proxy --> Game Server
+        Socket serverSocket = null;
+        try {
+            InetSocketAddress address = new InetSocketAddress(
+                    gameServer.getAddress(), gameServer.getPort());
+            serverSocket = (thread.usesChannels() ?
+                    SocketChannel.open().socket() : new Socket());
+            serverSocket.connect(address, HandlerThread.SERVER_CONNECT_TIMEOUT);
             serverSocket.setTcpNoDelay(true);
-            serverInputStream = serverSocket.getInputStream();
-            serverOutputStream = serverSocket.getOutputStream();
+        } catch (IOException e) {
+            Utils.close(serverSocket);
+            thread.addTask(() -> thread.finishConnecting(this, attempt, null, e));
+
+            return;
+        }
+        Socket connectedSocket = serverSocket;
+        thread.addTask(() -> thread.finishConnecting(this, attempt, connectedSocket, null));
+    }
+
+    boolean isCurrentConnectAttempt(long attempt) {
+        return attempt == connectAttempt;
+    }
+
+    // Called by the HandlerThread as soon as we've connected to the GameServer
+    void finishConnecting(Socket serverSocket) throws IOException {
+        synchronized (thread) {
+            this.serverSocket = serverSocket;
+            SocketChannel channel = serverSocket.getChannel();
+            if (thread.usesChannels() && channel != null) {
+                channel.configureBlocking(false);
+                ChannelOutputStream channelOutputStream = new ChannelOutputStream(channel);
+                serverInputStream = new ChannelInputStream(channel);
+                serverOutputStream = channelOutputStream;
+                if (thread.usesSelector()) {
+                    thread.registerChannel(channel, this, channelOutputStream);
+                }
+            } else {
+                serverInputStream = serverSocket.getInputStream();
+                serverOutputStream = new QueuedOutputStream(serverSocket.getOutputStream());
+            }
             lastServerReadTimestamp = System.currentTimeMillis();
 
             // writing PlayerIdentification packet
@@ -121,12 +222,18 @@ public class SocketHolder {
             String verificationKey = Utils.md5(ClassyCord.getInstance().getSalt() + username);
             Utils.writeMCString(verificationKey, serverOutputStream);
             serverOutputStream.write(clientSupportsCPE ? Utils.MAGIC : 0x00);
+            if (pendingServerboundData != null) {
+                pendingServerboundData.writeTo(serverOutputStream);
+                pendingServerboundData = null;
+            }
             serverOutputStream.flush();
 
             if (clientSupportsCPE) {
-                setState(SocketHolder.State.WAITING_FOR_SERVER_EXT_INFO_PT_1);
+                setState(SocketHolder.State.WAITING_FOR_SERVER_EXT_INFO);
             } else {
                 setState(SocketHolder.State.CONNECTED);
+                // there is no handshake to replay, the Client can talk to the new server now
+                analyzingStream.finishSuppressing();
             }
 
             EventManager.getInstance().fireEvent(
@@ -134,12 +241,37 @@ public class SocketHolder {
         }
     }
 
+    /*
+     * Client data which should be sent to the GameServer we're currently
+     * connecting to. It will be written right after PlayerIdentification.
+     */
+    void queueServerboundData(PooledBuffer data) {
+        synchronized (thread) {
+            if (pendingServerboundData == null) {
+                pendingServerboundData = new ByteArrayOutputStream();
+            }
+            pendingServerboundData.write(data.array(), 0, data.length());
+        }
+    }
+
+    public HandlerThread getThread() {
+        return thread;
+    }
+
+    /*
+     * Packets are split by PacketFramer now. Returns the length of the next
+     * packet of the CPE handshake we're waiting for, like it used to.
+     */
+    @Deprecated
     public int getExpectedServerPacketLength() {
         synchronized (thread) {
             switch (state) {
-                case WAITING_FOR_SERVER_EXT_INFO_PT_1: return 65;
-                case WAITING_FOR_SERVER_EXT_INFO_PT_2: return 2; /* only one short is remaining */
-                case WAITING_FOR_ALL_SERVER_EXT_ENTRIES: return expectedServerExtEntryCount * 69;
+                // a Disconnect packet is shorter than ExtInfo
+                case WAITING_FOR_SERVER_EXT_INFO:
+                    return Protocol.getClientboundPacketLength(Utils.DISCONNECT_PACKET, 0);
+                case WAITING_FOR_ALL_SERVER_EXT_ENTRIES:
+                    return (expectedServerExtEntryCount - receivedServerExtEntries.size()) *
+                            Protocol.getClientboundPacketLength(Utils.EXT_ENTRY_PACKET, 0);
                 default: return ANY_PACKET_LENGTH;
             }
         }
@@ -157,6 +289,11 @@ public class SocketHolder {
         return inputStream;
     }
 
+    /*
+     * Output streams are buffered, the HandlerThread flushes them once
+     * it has handled all the data it has received. If you're writing
+     * something outside of event handlers, don't forget to call flush().
+     */
     public OutputStream getOutputStream() {
         return outputStream;
     }
@@ -165,6 +302,28 @@ public class SocketHolder {
         return analyzingStream;
     }
 
+    public PacketFramer getClientFramer() {
+        return clientFramer;
+    }
+
+    // Client -> Proxy packets
+    public PacketPipeline getServerboundPipeline() {
+        return serverboundPipeline;
+    }
+
+    // GameServer -> Proxy packets
+    public PacketPipeline getClientboundPipeline() {
+        return clientboundPipeline;
+    }
+
+    public Backpressure getClientboundBackpressure() {
+        return clientboundBackpressure;
+    }
+
+    public Backpressure getServerboundBackpressure() {
+        return serverboundBackpressure;
+    }
+
     public long getLastReadTimestamp() {
         return lastReadTimestamp;
     }
@@ -191,6 +350,10 @@ public class SocketHolder {
         return serverOutputStream;
     }
 
+    public PacketFramer getServerFramer() {
+        return serverFramer;
+    }
+
     public long getLastServerReadTimestamp() {
         return lastServerReadTimestamp;
     }
@@ -205,7 +368,13 @@ public class SocketHolder {
         return state;
     }
 
+    @SuppressWarnings("deprecation")
     public void setState(State state) {
+        if (state == State.WAITING_FOR_SERVER_EXT_INFO_PT_1 ||
+                state == State.WAITING_FOR_SERVER_EXT_INFO_PT_2
+        ) {
+            state = State.WAITING_FOR_SERVER_EXT_INFO;
+        }
         synchronized (thread) {
             this.state = state;
         }
@@ -228,9 +397,21 @@ public class SocketHolder {
     public void setExpectedServerExtEntryCount(short expectedServerExtEntryCount) {
         synchronized (thread) {
             this.expectedServerExtEntryCount = expectedServerExtEntryCount;
+            receivedServerExtEntries.clear();
         }
     }
 
+    // Returns the whole CPEArray once the last expected ExtEntry is added, otherwise null
+    Object[][] addServerExtEntry(String extName, int version) {
+        receivedServerExtEntries.add(new Object[] { extName, version });
+        if (receivedServerExtEntries.size() < expectedServerExtEntryCount) return null;
+
+        Object[][] CPEArray = receivedServerExtEntries.toArray(new Object[0][]);
+        receivedServerExtEntries.clear();
+
+        return CPEArray;
+    }
+
     public Object[][] getServerCPEArrayConnectionWasInitializedWith() {
         return serverCPEArrayConnectionWasInitializedWith;
     }
@@ -238,9 +419,28 @@ public class SocketHolder {
     public void setServerCPEArrayConnectionWasInitializedWith(Object[][] CPEArray) {
         synchronized (thread) {
             this.serverCPEArrayConnectionWasInitializedWith = CPEArray;
+
+            int extensions = 0;
+            for (Object[] entry : CPEArray) {
+                extensions |= Protocol.getExtensionFlag((String) entry[0], (Integer) entry[1]);
+            }
+            serverExtensions = extensions;
         }
     }
 
+    // Called for each ExtEntry sent by the Client
+    void addClientExtension(String extName, int version) {
+        clientExtensions |= Protocol.getExtensionFlag(extName, version);
+    }
+
+    /*
+     * Extensions (see Protocol flags) which are supported by both sides,
+     * they affect lengths of some packets.
+     */
+    public int getNegotiatedExtensions() {
+        return clientExtensions & serverExtensions;
+    }
+
     public byte[] getClientCPEHandshake() {
         return clientCPEHandshake;
     }
@@ -274,19 +474,18 @@ public class SocketHolder {
     }
 
     public int getTicksNoNewDataFromServer() {
-        return ticksNoNewDataFromServer;
+        return (int) (Utils.delta(lastServerReadTimestamp) / HandlerThread.TICK_INTERVAL_MS);
     }
 
+    // Does nothing, the tick count is derived from getLastServerReadTimestamp()
+    @Deprecated
     public void incrementTicksNoNewDataFromServer() {
-        synchronized (thread) {
-            this.ticksNoNewDataFromServer++;
-        }
     }
 
+    // Use setLastServerReadTimestamp() instead
+    @Deprecated
     public void resetTicksNoNewDataFromServer() {
-        synchronized (thread) {
-            this.ticksNoNewDataFromServer = 0;
-        }
+        setLastServerReadTimestamp(System.currentTimeMillis());
     }
 
     public GameServer getPendingGameServer() {
@@ -298,6 +497,9 @@ public class SocketHolder {
             if (pendingGameServer == null) connectingForTheFirstTime = false;
 
             this.pendingGameServer = pendingGameServer;
+            if (pendingSwitchTimeout != null) pendingSwitchTimeout.cancel();
+            pendingSwitchTimeout = null;
+            if (pendingGameServer != null) thread.schedulePendingSwitch(this);
         }
     }
 
@@ -305,6 +507,62 @@ public class SocketHolder {
         return connectingForTheFirstTime;
     }
 
+    boolean hasServerRelay() {
+        return hasServerRelay;
+    }
+
+    void setHasServerRelay() {
+        hasServerRelay = true;
+    }
+
+    /*
+     * Set as soon as the HandlerThread starts closing the connection. In relay
+     * mode the Client socket itself may stay open a bit longer, while the
+     * Disconnect packet is being sent.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    void markClosed() {
+        closed = true;
+    }
+
+    boolean isActive() {
+        return active;
+    }
+
+    void setActive(boolean active) {
+        this.active = active;
+    }
+
+    long getActiveUntil() {
+        return activeUntil;
+    }
+
+    void setActiveUntil(long activeUntil) {
+        this.activeUntil = activeUntil;
+    }
+
+    // The following four methods should be called while holding the HandlerThread monitor
+    void setReadTimeout(TimerWheel.Timeout readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    void setHandshakeTimeout(TimerWheel.Timeout handshakeTimeout) {
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    void setPendingSwitchTimeout(TimerWheel.Timeout pendingSwitchTimeout) {
+        this.pendingSwitchTimeout = pendingSwitchTimeout;
+    }
+
+    void cancelTimeouts() {
+        if (readTimeout != null) readTimeout.cancel();
+        if (handshakeTimeout != null) handshakeTimeout.cancel();
+        if (pendingSwitchTimeout != null) pendingSwitchTimeout.cancel();
+    }
+
     public synchronized void putMetadata(Object key, Object value) {
         metadata.put(key, value);
     }
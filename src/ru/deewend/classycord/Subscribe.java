@@ -0,0 +1,24 @@
+package ru.deewend.classycord;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/*
+ * Marks a listener method, see EventManager#registerListener(). The method
+ * should return void and take a single parameter, the class of the events
+ * it's interested in (subclasses are delivered as well).
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Subscribe {
+    // Handlers with lower priority values are called first
+    int priority() default EventManager.DEFAULT_PRIORITY;
+
+    // If true, the method isn't called for events cancelled by previous handlers
+    boolean ignoreCancelled() default false;
+
+    // See EventManager#registerAsyncEventHandler()
+    boolean async() default false;
+}
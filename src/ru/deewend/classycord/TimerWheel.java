@@ -0,0 +1,140 @@
+package ru.deewend.classycord;
+
+/*
+ * A hashed timing wheel. Every deadline is put into the slot of the tick it
+ * expires at, advance() only visits the slots of the ticks which have passed
+ * since the previous call. Deadlines further away than a whole revolution
+ * stay in their slot and are skipped until their tick comes.
+ *
+ * Not thread-safe, a HandlerThread only uses its wheel while holding its
+ * own monitor. The tasks shouldn't throw.
+ */
+public class TimerWheel {
+    public static class Timeout {
+        private static final int PENDING = 0;
+        private static final int EXPIRING = 1; // removed from the wheel, but hasn't been run yet
+        private static final int EXPIRED = 2;
+        private static final int CANCELLED = 3;
+
+        private final TimerWheel wheel;
+        private final Runnable task;
+        private final long deadlineTick;
+        private Timeout previous;
+        private Timeout next;
+        private int state = PENDING;
+
+        private Timeout(TimerWheel wheel, Runnable task, long deadlineTick) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        // Returns false if the task has already been run or cancelled
+        public boolean cancel() {
+            if (state == EXPIRED || state == CANCELLED) return false;
+
+            if (state == PENDING) wheel.unlink(this);
+            state = CANCELLED;
+
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+    }
+
+    private final Timeout[] slots;
+    private final int mask;
+    private final long tickMillis;
+    private final long startTimestamp;
+    private long currentTick;
+    private int size;
+
+    public TimerWheel(int slotCount, long tickMillis) {
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("slotCount should be a power of two");
+        }
+        if (tickMillis <= 0L) throw new IllegalArgumentException("tickMillis should be positive");
+
+        this.slots = new Timeout[slotCount];
+        this.mask = slotCount - 1;
+        this.tickMillis = tickMillis;
+        this.startTimestamp = System.currentTimeMillis();
+    }
+
+    // The task is run by the first advance() call made after the delay has passed
+    public Timeout schedule(long delayMillis, Runnable task) {
+        long deadlineMillis = System.currentTimeMillis() + Math.max(delayMillis, 0L);
+        // rounding up, so the task is never run too early
+        long deadlineTick = Math.max(currentTick + 1,
+                (deadlineMillis - startTimestamp + tickMillis - 1) / tickMillis);
+
+        Timeout timeout = new Timeout(this, task, deadlineTick);
+        int slot = (int) (deadlineTick & mask);
+        Timeout head = slots[slot];
+        if (head != null) head.previous = timeout;
+        timeout.next = head;
+        slots[slot] = timeout;
+        size++;
+
+        return timeout;
+    }
+
+    // Returns the number of tasks which have been run
+    public int advance(long currentTimeMillis) {
+        long targetTick = (currentTimeMillis - startTimestamp) / tickMillis;
+        int expiredCount = 0;
+        while (currentTick < targetTick) {
+            currentTick++;
+
+            // unlinking first, so the tasks are free to schedule and cancel whatever they want
+            Timeout expired = null;
+            Timeout timeout = slots[(int) (currentTick & mask)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.deadlineTick <= currentTick) {
+                    unlink(timeout);
+                    timeout.state = Timeout.EXPIRING;
+                    timeout.next = expired;
+                    expired = timeout;
+                }
+                timeout = next;
+            }
+            while (expired != null) {
+                Timeout next = expired.next;
+                expired.next = null;
+                // might have been cancelled by one of the previous tasks
+                if (expired.state == Timeout.EXPIRING) {
+                    expired.state = Timeout.EXPIRED;
+                    expired.task.run();
+                    expiredCount++;
+                }
+                expired = next;
+            }
+        }
+
+        return expiredCount;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            slots[(int) (timeout.deadlineTick & mask)] = timeout.next;
+        }
+        if (timeout.next != null) timeout.next.previous = timeout.previous;
+        timeout.previous = null;
+        timeout.next = null;
+        size--;
+    }
+
+    // How many tasks are waiting to be run
+    public int size() {
+        return size;
+    }
+}
@@ -1,6 +1,8 @@
 package ru.deewend.classycord;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.math.BigInteger;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
@@ -21,9 +23,93 @@ public class Utils {
     public static final int MESSAGE_PACKET = 0x0d;
     public static final int PROTOCOL_STRING_LENGTH = 64;
 
+    private static final Object VIRTUAL_THREAD_BUILDER;
+    private static final Method BUILDER_NAME_METHOD;
+    private static final Method BUILDER_UNSTARTED_METHOD;
+    public static final boolean VIRTUAL_THREADS_SUPPORTED;
+    public static final String MEASURE_ALLOCATIONS_PROPERTY = "ccMeasureAllocations";
+    // Asking the JVM about allocations twice per read isn't free, so it's off by default
+    public static final boolean MEASURE_ALLOCATIONS = Boolean.parseBoolean(System
+            .getProperty(MEASURE_ALLOCATIONS_PROPERTY, String.valueOf(ClassyCord.DEBUG)));
+    // null if the JVM can't tell how many bytes a thread has allocated or we shouldn't ask
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN;
+
+    static {
+        // Thread.ofVirtual() is available since Java 21, but we're targeting Java 8
+        Object builder = null;
+        Method nameMethod = null;
+        Method unstartedMethod = null;
+        try {
+            builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            nameMethod = builderClass.getMethod("name", String.class);
+            unstartedMethod = builderClass.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException | SecurityException ignored) {
+            builder = null;
+        }
+        VIRTUAL_THREAD_BUILDER = builder;
+        BUILDER_NAME_METHOD = nameMethod;
+        BUILDER_UNSTARTED_METHOD = unstartedMethod;
+        VIRTUAL_THREADS_SUPPORTED = (builder != null);
+
+        com.sun.management.ThreadMXBean threadMXBean = null;
+        if (MEASURE_ALLOCATIONS) {
+            try {
+                java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+                if (bean instanceof com.sun.management.ThreadMXBean) {
+                    threadMXBean = (com.sun.management.ThreadMXBean) bean;
+                    if (!threadMXBean.isThreadAllocatedMemorySupported() ||
+                            !threadMXBean.isThreadAllocatedMemoryEnabled()) {
+                        threadMXBean = null;
+                    }
+                }
+            } catch (LinkageError | SecurityException ignored) {
+                threadMXBean = null;
+            }
+        }
+        THREAD_MX_BEAN = threadMXBean;
+    }
+
     private Utils() {
     }
 
+    /*
+     * Starts a virtual thread if the JVM supports them,
+     * otherwise falls back to a daemon platform thread.
+     */
+    public static Thread startVirtualThread(String name, Runnable task) {
+        Thread thread = null;
+        if (VIRTUAL_THREADS_SUPPORTED) {
+            try {
+                synchronized (VIRTUAL_THREAD_BUILDER) {
+                    BUILDER_NAME_METHOD.invoke(VIRTUAL_THREAD_BUILDER, name);
+                    thread = (Thread) BUILDER_UNSTARTED_METHOD
+                            .invoke(VIRTUAL_THREAD_BUILDER, task);
+                }
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException("Could not create a virtual thread", e);
+            }
+        }
+        if (thread == null) {
+            thread = new Thread(task, name);
+            thread.setDaemon(true);
+        }
+        thread.start();
+
+        return thread;
+    }
+
+    public static boolean canMeasureAllocations() {
+        return THREAD_MX_BEAN != null;
+    }
+
+    // Returns -1 if it's not supported by the JVM
+    public static long getCurrentThreadAllocatedBytes() {
+        if (THREAD_MX_BEAN == null) return -1L;
+
+        return THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
     public static void close(Closeable closeable) {
         if (closeable == null) return;
 
@@ -55,14 +141,19 @@ public class Utils {
 
         // Proxy --> Client
         try {
-            dst.write(DISCONNECT_PACKET);
-            writeMCString(reason, dst);
+            writeDisconnect(dst, reason);
             dst.flush();
         } catch (IOException ignored) {
             /* Ignoring this. */
         }
     }
 
+    // Same as above, but leaves flushing to the caller
+    public static void writeDisconnect(OutputStream dst, String reason) throws IOException {
+        dst.write(DISCONNECT_PACKET);
+        writeMCString(reason, dst);
+    }
+
     public static String getAddress(Socket socket) {
         return socket.getRemoteSocketAddress().toString();
     }
@@ -74,10 +165,9 @@ public class Utils {
 
             return;
         }
-        byte[] padding = new byte[PROTOCOL_STRING_LENGTH - bytes.length];
-        Arrays.fill(padding, (byte) 0x20);
-        dst.write(bytes);
-        dst.write(padding);
+        byte[] padded = Arrays.copyOf(bytes, PROTOCOL_STRING_LENGTH);
+        Arrays.fill(padded, bytes.length, padded.length, (byte) 0x20);
+        dst.write(padded);
     }
 
     public static String readMCString(DataInputStream src) throws IOException {
@@ -88,9 +178,13 @@ public class Utils {
     }
 
     public static String readMCString(byte[] buffer) {
+        return readMCString(buffer, 0);
+    }
+
+    public static String readMCString(byte[] buffer, int offset) {
         int end = -1;
         for (int i = PROTOCOL_STRING_LENGTH - 1; i >= 0; i--) {
-            if (buffer[i] != 0x20) {
+            if (buffer[offset + i] != 0x20) {
                 end = i + 1;
 
                 break;
@@ -99,11 +193,16 @@ public class Utils {
         if (end == -1) return "";
 
         byte[] result = new byte[end];
-        System.arraycopy(buffer, 0, result, 0, result.length);
+        System.arraycopy(buffer, offset, result, 0, result.length);
 
         return new String(result);
     }
 
+    public static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16) |
+                ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+    }
+
     public static boolean validateUsername(String username) {
         if (username == null) {
             return false; // wut?